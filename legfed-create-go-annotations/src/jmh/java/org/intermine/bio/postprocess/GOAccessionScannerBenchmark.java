@@ -0,0 +1,118 @@
+package org.intermine.bio.postprocess;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, Legume Federation
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares GOAccessionScanner with the StringUtils.substringsBetween(description, "GO:", " ") parsing it replaced,
+ * over a corpus of gene descriptions. The corpus is read from descriptionFile, one description per line, e.g. an
+ * export of Gene.description from a mine; if that isn't set, geneCount descriptions are generated in the LIS format,
+ * with a mix of genes without GO terms and genes whose last GO term ends the description.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class GOAccessionScannerBenchmark {
+
+    private static final String[] DOMAINS = {
+        "IPR000743 (Glycoside hydrolase, family 28)", "IPR011050 (Pectin lyase fold/virulence factor)",
+        "IPR001245 (Serine-threonine/tyrosine-protein kinase, catalytic domain)", "IPR002885 (Pentatricopeptide repeat)",
+        "IPR003591 (Leucine-rich repeat, typical subtype)", "IPR001005 (SANT/Myb domain)"
+    };
+
+    private static final String[] TERMS = {
+        "polygalacturonase activity", "carbohydrate metabolic process", "protein kinase activity", "ATP binding",
+        "protein binding", "DNA binding", "membrane", "nucleus", "oxidation-reduction process"
+    };
+
+    @Param({""})
+    public String descriptionFile;
+
+    @Param({"100000"})
+    public int geneCount;
+
+    private List<String> descriptions;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (!StringUtils.isEmpty(descriptionFile)) {
+            descriptions = Files.readAllLines(Paths.get(descriptionFile), StandardCharsets.UTF_8);
+            return;
+        }
+        Random random = new Random(42);
+        descriptions = new ArrayList<>(geneCount);
+        for (int i = 0; i < geneCount; i++) {
+            StringBuilder sb = new StringBuilder("uncharacterized protein ").append(random.nextInt(100)).append(';');
+            int domainCount = random.nextInt(3);
+            for (int d = 0; d < domainCount; d++) {
+                sb.append(d == 0 ? " " : ", ").append(DOMAINS[random.nextInt(DOMAINS.length)]);
+            }
+            // a third of the genes have no GO terms, as in the LIS gene descriptions
+            int goCount = (random.nextInt(3) == 0) ? 0 : 1 + random.nextInt(6);
+            for (int g = 0; g < goCount; g++) {
+                sb.append(g == 0 ? "; " : ", ").append(String.format("GO:%07d", random.nextInt(2200000)));
+                // some descriptions end with a bare accession, which substringsBetween misses
+                if (g < goCount - 1 || random.nextBoolean()) {
+                    sb.append(" (").append(TERMS[random.nextInt(TERMS.length)]).append(')');
+                }
+            }
+            descriptions.add(sb.toString());
+        }
+    }
+
+    @Benchmark
+    public void substringsBetween(Blackhole bh) {
+        for (String description : descriptions) {
+            String[] goNumbers = StringUtils.substringsBetween(description, "GO:", " ");
+            if (goNumbers != null) {
+                for (String goNumber : goNumbers) {
+                    bh.consume("GO:" + goNumber);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void scanner(Blackhole bh) {
+        GOAccessionScanner scanner = new GOAccessionScanner();
+        for (String description : descriptions) {
+            int goCount = scanner.scan(description);
+            for (int i = 0; i < goCount; i++) {
+                bh.consume(scanner.get(i));
+            }
+        }
+    }
+}
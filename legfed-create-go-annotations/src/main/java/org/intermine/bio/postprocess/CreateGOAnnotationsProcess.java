@@ -10,10 +10,24 @@ package org.intermine.bio.postprocess;
  *
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 import org.apache.commons.lang3.StringUtils;
@@ -24,7 +38,8 @@ import org.intermine.metadata.ConstraintOp;
 import org.intermine.objectstore.ObjectStore;
 import org.intermine.objectstore.ObjectStoreException;
 import org.intermine.objectstore.ObjectStoreWriter;
-import org.intermine.objectstore.intermine.ObjectStoreInterMineImpl;
+import org.intermine.objectstore.proxy.ProxyReference;
+import org.intermine.objectstore.query.BagConstraint;
 import org.intermine.objectstore.query.ConstraintSet;
 import org.intermine.objectstore.query.ContainsConstraint;
 import org.intermine.objectstore.query.Query;
@@ -42,6 +57,7 @@ import org.intermine.util.DynamicUtil;
 import org.intermine.model.bio.Annotatable;
 import org.intermine.model.bio.Gene;
 import org.intermine.model.bio.OntologyAnnotation;
+import org.intermine.model.bio.Organism;
 import org.intermine.model.bio.OntologyTerm;
 
 /**
@@ -53,14 +69,99 @@ public class CreateGOAnnotationsProcess extends PostProcessor {
 
     private static final Logger LOG = Logger.getLogger(CreateGOAnnotationsProcess.class);
 
+    // number of term identifiers per BagConstraint query
+    private static final int TERM_QUERY_SIZE = 1000;
+
+    // number of (gene, GO accession) pairs handed from a scanner thread to the writer at a time
+    private static final int PAIR_CHUNK_SIZE = 1024;
+
+    // number of pair chunks that may wait for the writer before the scanner threads block
+    private static final int PAIR_QUEUE_CAPACITY = 64;
+
+    // number of annotations stored per transaction
+    private int batchSize = 1000;
+
+    // number of threads scanning gene descriptions for the writer; 0 scans on the writer thread
+    private int scannerThreads = 0;
+
+    // gene description fingerprints from the last run; if null every gene is scanned
+    private File fingerprintFile = null;
+
+    // organisms to annotate; if empty all genes are annotated
+    private Set<Integer> taxonIds = new LinkedHashSet<>();
+
+    // number of organisms annotated concurrently, each by its own worker; 0 annotates all genes in one pass
+    private int organismThreads = 0;
+
     /**
      * Create a new instance of CreateGOAnnotations
      * @param osw object store writer
--     */
+     */
     public CreateGOAnnotationsProcess(ObjectStoreWriter osw) {
         super(osw);
     }
 
+    /**
+     * Set the number of GO annotations to store per transaction, default 1000.
+     * @param batchSize the number of annotations per commit
+     */
+    public void setBatchSize(String batchSize) {
+        if (!StringUtils.isEmpty(batchSize)) {
+            this.batchSize = Integer.parseInt(batchSize.trim());
+        }
+    }
+
+    /**
+     * Set the number of threads that scan gene descriptions while a single writer stores the annotations.
+     * If not set, or 0, the descriptions are scanned on the writer thread.
+     * @param scannerThreads the number of scanner threads
+     */
+    public void setScannerThreads(String scannerThreads) {
+        if (!StringUtils.isEmpty(scannerThreads)) {
+            this.scannerThreads = Integer.parseInt(scannerThreads.trim());
+        }
+    }
+
+    /**
+     * Set the file holding the gene description fingerprints from the last run, which turns on incremental mode:
+     * only genes whose description is new or has changed are scanned, and GO annotations that this process created
+     * from a changed description but are no longer in it are deleted. The file is rewritten at the end of the run.
+     * @param fingerprintFile the path of the fingerprint file
+     */
+    public void setFingerprintFile(String fingerprintFile) {
+        if (!StringUtils.isEmpty(fingerprintFile)) {
+            this.fingerprintFile = new File(fingerprintFile.trim());
+        }
+    }
+
+    /**
+     * Set a comma separated list of taxon ids to create GO annotations for.  If no list
+     * is provided annotations will be created for all organisms.
+     * @param organisms a comma separated list of taxon ids
+     */
+    public void setOrganisms(String organisms) {
+        if (!StringUtils.isEmpty(organisms)) {
+            String[] array = organisms.split(",");
+            for (int i = 0; i < array.length; i++) {
+                taxonIds.add(new Integer(array[i].trim()));
+            }
+        }
+    }
+
+    /**
+     * Set the number of organisms to annotate concurrently. If greater than 0, each organism (from setOrganisms, or
+     * every organism in the mine) is annotated by its own worker with its own queries and ObjectStoreWriter, and in
+     * incremental mode its own fingerprint file, named after the fingerprint file with a ".taxonId" suffix. Every
+     * organism's genes and annotations are read before any organism's annotations are stored, so memory use is that
+     * of annotating all the organisms in one pass.
+     * @param organismThreads the maximum number of organism workers running at once
+     */
+    public void setOrganismThreads(String organismThreads) {
+        if (!StringUtils.isEmpty(organismThreads)) {
+            this.organismThreads = Integer.parseInt(organismThreads.trim());
+        }
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -69,106 +170,687 @@ public class CreateGOAnnotationsProcess extends PostProcessor {
      * @throws ObjectStoreException if the objectstore throws an exception
      */
     public void postProcess() throws ObjectStoreException {
+        if (organismThreads<=0) {
+            writePartition(osw, readPartition(osw.getObjectStore(), taxonIds, fingerprintFile, ""));
+            return;
+        }
+        // one partition per organism, each with its own queries and writer
+        Set<Integer> partitions = taxonIds.isEmpty() ? PartitionWorkers.getTaxonIds(osw.getObjectStore()) : taxonIds;
+        LOG.info("Annotating "+partitions.size()+" organisms on up to "+organismThreads+" threads.");
+        // a commit by one partition fails any Results another is still reading with a DataChangedException, so every
+        // partition is read before any partition writes
+        final Map<Integer,Partition> read = PartitionWorkers.run(osw, partitions, organismThreads, "GO annotation query failed for taxon ",
+                                                                 (partitionWriter, taxonId) -> {
+            long start = System.currentTimeMillis();
+            File partitionFingerprintFile = (fingerprintFile==null) ? null : new File(fingerprintFile.getPath()+"."+taxonId);
+            Partition partition = readPartition(partitionWriter.getObjectStore(), Collections.singleton(taxonId), partitionFingerprintFile,
+                                                "[taxon "+taxonId+"] ");
+            LOG.info("[taxon "+taxonId+"] Read in "+(System.currentTimeMillis()-start)/1000+" s.");
+            return partition;
+        });
+        PartitionWorkers.run(osw, partitions, organismThreads, "GO annotation failed for taxon ", (partitionWriter, taxonId) -> {
+            long start = System.currentTimeMillis();
+            writePartition(partitionWriter, read.get(taxonId));
+            LOG.info("[taxon "+taxonId+"] Finished in "+(System.currentTimeMillis()-start)/1000+" s.");
+            return null;
+        });
+    }
 
-        // Find existing GO annotation objects and load the mashed term and gene identifiers into a Set for future non-dupage
+    /**
+     * Read everything needed to create the missing GO annotations for the genes of the given organisms. Nothing is
+     * written, and every Results is read in full.
+     *
+     * @param os the ObjectStore to read from
+     * @param partitionTaxonIds the taxon ids of the organisms; if empty, all genes are annotated
+     * @param partitionFingerprintFile the fingerprint file for these organisms, or null
+     * @param label a prefix for log messages
+     * @return the partition, ready to write
+     * @throws ObjectStoreException if the objectstore throws an exception
+     */
+    Partition readPartition(ObjectStore os, Set<Integer> partitionTaxonIds, File partitionFingerprintFile, String label)
+        throws ObjectStoreException {
+        Partition partition = new Partition(partitionFingerprintFile, label);
+
+        // Find existing GO annotations and load the packed GO accession and subject id into a Set for future non-dupage.
+        // Select just the identifier columns in one join so we don't lazy-load each annotation's term and subject.
         Query qAnnot = new Query();
         qAnnot.setDistinct(true);
+        ConstraintSet csAnnot = new ConstraintSet(ConstraintOp.AND);
         QueryClass qcAnnot = new QueryClass(OntologyAnnotation.class);
         qAnnot.addFrom(qcAnnot);
-        qAnnot.addToSelect(qcAnnot);
-        Results annotResults = osw.getObjectStore().execute(qAnnot);
+        // 0 OntologyAnnotation.ontologyTerm.identifier
+        QueryClass qcTerm = new QueryClass(OntologyTerm.class);
+        qAnnot.addFrom(qcTerm);
+        QueryField qfTermIdentifier = new QueryField(qcTerm, "identifier");
+        qAnnot.addToSelect(qfTermIdentifier);
+        csAnnot.addConstraint(new ContainsConstraint(new QueryObjectReference(qcAnnot, "ontologyTerm"), ConstraintOp.CONTAINS, qcTerm));
+        csAnnot.addConstraint(new SimpleConstraint(qfTermIdentifier, ConstraintOp.MATCHES, new QueryValue("GO:%")));
+        // 1 OntologyAnnotation.subject.id
+        QueryClass qcSubject = new QueryClass(partitionTaxonIds.isEmpty() ? Annotatable.class : Gene.class);
+        qAnnot.addFrom(qcSubject);
+        qAnnot.addToSelect(new QueryField(qcSubject, "id"));
+        csAnnot.addConstraint(new ContainsConstraint(new QueryObjectReference(qcAnnot, "subject"), ConstraintOp.CONTAINS, qcSubject));
+        addOrganismConstraint(qAnnot, csAnnot, qcSubject, partitionTaxonIds);
+        qAnnot.setConstraint(csAnnot);
+        Results annotResults = os.execute(qAnnot, 5000, true, false, false);
         Iterator<?> annotIter = annotResults.iterator();
-        Set<String> mashedIdentifiersSet = new HashSet<>();
+        LongHashSet annotationSet = partition.annotationSet;
         while (annotIter.hasNext()) {
             ResultsRow<?> rr = (ResultsRow<?>) annotIter.next();
-            OntologyAnnotation annotation = (OntologyAnnotation)rr.get(0);
-            OntologyTerm term = annotation.getOntologyTerm();
-            String termIdentifier = term.getIdentifier();
-            if (termIdentifier.startsWith("GO:")) {
-                Annotatable subject = annotation.getSubject();
-                String geneIdentifier = subject.getPrimaryIdentifier();
-                String mashedIdentifiers = mashIdentifiers(termIdentifier,geneIdentifier);
-                mashedIdentifiersSet.add(mashedIdentifiers);
+            String termIdentifier = (String) rr.get(0);
+            Integer subjectId = (Integer) rr.get(1);
+            int accession = parseAccession(termIdentifier, 3);
+            if (accession>=0) {
+                annotationSet.add(packAnnotation(accession, subjectId.intValue()));
             }
         }
-        LOG.info("Found "+mashedIdentifiersSet.size()+" existing GO annotation records.");
+        LOG.info(label+"Found "+annotationSet.size()+" existing GO annotation records.");
 
-        // query all Gene records, loading Genes into a Set
+        // query all Gene records of the partition's organisms, loading Genes into a Set
         Query qGene = new Query();
         qGene.setDistinct(true);
+        ConstraintSet csGene = new ConstraintSet(ConstraintOp.AND);
         QueryClass qcGene = new QueryClass(Gene.class);
         qGene.addFrom(qcGene);
         qGene.addToSelect(qcGene);
         qGene.addToOrderBy(qcGene);
-        Results geneResults = osw.getObjectStore().execute(qGene);
+        if (!partitionTaxonIds.isEmpty()) {
+            addOrganismConstraint(qGene, csGene, qcGene, partitionTaxonIds);
+            qGene.setConstraint(csGene);
+        }
+        Results geneResults = os.execute(qGene);
         Iterator<?> geneIter = geneResults.iterator();
         Set<Gene> geneSet = new HashSet<>();
         while (geneIter.hasNext()) {
             ResultsRow<?> rr = (ResultsRow<?>) geneIter.next();
             geneSet.add((Gene)rr.get(0));
         }
-        LOG.info("Retrieved "+geneSet.size()+" Gene objects for GO annotation.");
+        LOG.info(label+"Retrieved "+geneSet.size()+" Gene objects for GO annotation.");
+
+        // in incremental mode only scan the genes whose description fingerprint is new or has changed
+        partition.geneList = new ArrayList<>(geneSet);
+        if (partitionFingerprintFile!=null) {
+            try {
+                partition.oldFingerprints = GODescriptionFingerprints.read(partitionFingerprintFile);
+            } catch (IOException ex) {
+                throw new ObjectStoreException("Could not read GO description fingerprints from "+partitionFingerprintFile, ex);
+            }
+            partition.newFingerprints = new GODescriptionFingerprints();
+            partition.geneList = selectChangedGenes(partition.geneList, annotationSet, partition.oldFingerprints, partition.newFingerprints);
+            LOG.info(label+partition.geneList.size()+" of "+geneSet.size()+" genes have new or changed descriptions since the last run.");
+        }
 
         //
         // polygalacturonase 4;
         // IPR000743 (Glycoside hydrolase, family 28), IPR011050 (Pectin lyase fold/virulence factor);
         // GO:0004650 (polygalacturonase activity), GO:0005975 (carbohydrate metabolic process)
         //
-        int count = 0;
-        // store missing GO terms in this set to avoid multiple queries
-        Set<String> missingIdentifiers = new HashSet<>();
-        // now plow through the genes, creating GO annotation records if they don't already exist
-        for (Gene gene : geneSet) {
+        // first pass: collect the distinct GO accessions mentioned in the gene descriptions
+        GOAccessionScanner scanner = new GOAccessionScanner();
+        Set<Integer> accessions = new HashSet<>();
+        for (Gene gene : partition.geneList) {
+            int goCount = scanner.scan(getDescription(gene));
+            for (int i=0; i<goCount; i++) {
+                accessions.add(scanner.get(i));
+            }
+        }
+        LOG.info(label+"Found "+accessions.size()+" distinct GO identifiers in gene descriptions.");
+
+        // resolve them to OntologyTerm objects in a handful of IN queries
+        partition.termMap = getOntologyTerms(os, accessions);
+        LOG.info(label+"Retrieved "+partition.termMap.size()+" GO OntologyTerm objects.");
+        for (Integer accession : accessions) {
+            if (!partition.termMap.containsKey(accession)) {
+                LOG.error(label+"GO term not found for ["+formatIdentifier(accession)+"]");
+            }
+        }
+
+        // find the annotations this process created which the changed descriptions no longer support
+        if (partitionFingerprintFile!=null) {
+            partition.staleAnnotations = getStaleAnnotations(os, findStaleAnnotations(partition.geneList, partition.oldFingerprints));
+        }
+        return partition;
+    }
+
+    /**
+     * Create the missing GO annotations of a partition that has been read, and in incremental mode delete its stale
+     * ones and write its fingerprints. Nothing is read from the ObjectStore.
+     *
+     * @param writer the ObjectStoreWriter to write with; only this thread may use it
+     * @param partition the partition
+     * @throws ObjectStoreException if the objectstore throws an exception
+     */
+    void writePartition(ObjectStoreWriter writer, Partition partition) throws ObjectStoreException {
+        String label = partition.label;
+        LongHashSet storedSet = null;
+        if (partition.fingerprintFile!=null) {
+            deleteStaleAnnotations(writer, partition.staleAnnotations, label);
+            storedSet = new LongHashSet();
+        }
+
+        // second pass: plow through the genes, creating GO annotation records if they don't already exist
+        AnnotationWriter annotationWriter = new AnnotationWriter(writer, partition.termMap, partition.annotationSet, storedSet, label);
+        if (scannerThreads>0) {
+            LOG.info(label+"Scanning gene descriptions on "+scannerThreads+" threads, committing every "+batchSize+" annotations.");
+            scanPipelined(partition.geneList, annotationWriter);
+        } else {
+            GOAccessionScanner scanner = new GOAccessionScanner();
+            for (Gene gene : partition.geneList) {
+                int goCount = scanner.scan(getDescription(gene));
+                int geneId = gene.getId().intValue();
+                for (int i=0; i<goCount; i++) {
+                    annotationWriter.store(packAnnotation(scanner.get(i), geneId));
+                }
+            }
+        }
+        annotationWriter.close();
+        if (partition.fingerprintFile!=null) {
+            recordFingerprints(partition.geneList, partition.oldFingerprints, partition.newFingerprints, storedSet);
             try {
-                String geneIdentifier = (String) gene.getFieldValue("primaryIdentifier");
-	        String description = (String) gene.getFieldValue("description");
-                // parse the description for GO identifiers, assuming comma-space format
-                String[] goNumbers = StringUtils.substringsBetween(description, "GO:", " ");
-                if (goNumbers!=null) {
-                    // create and store the GO annotations
-                    osw.beginTransaction();
-                    for (int i=0; i<goNumbers.length; i++) {
-                        String termIdentifier = "GO:"+goNumbers[i];
-                        String mashedIdentifiers = mashIdentifiers(termIdentifier, geneIdentifier);
-                        if (!missingIdentifiers.contains(termIdentifier) && !mashedIdentifiersSet.contains(mashedIdentifiers)) {
-                            // query this ontology term
-                            Query q = new Query();
-                            q.setDistinct(true);
-                            QueryClass qc = new QueryClass(OntologyTerm.class);
-                            q.addFrom(qc);
-                            q.addToSelect(qc);
-                            QueryField qf = new QueryField(qc, "identifier");
-                            ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
-                            SimpleConstraint sc = new SimpleConstraint(qf, ConstraintOp.EQUALS, new QueryValue(termIdentifier));
-                            cs.addConstraint(sc);
-                            q.setConstraint(cs);
-                            // execute the query
-                            Results results = osw.getObjectStore().execute(q);
-                            Iterator<?> iter = results.iterator();
-                            if (iter.hasNext()) {
-                                ResultsRow<?> row = (ResultsRow<?>) iter.next();
-                                OntologyTerm term = (OntologyTerm) row.get(0);
-                                OntologyAnnotation goAnnotation = (OntologyAnnotation) DynamicUtil.createObject(Collections.singleton(OntologyAnnotation.class));
-                                goAnnotation.setFieldValue("ontologyTerm", term);
-                                goAnnotation.setFieldValue("subject", gene);
-                                osw.store(goAnnotation);
-                                count++;
-                            } else {
-                                missingIdentifiers.add(termIdentifier);
-                                LOG.error("GO term not found for ["+termIdentifier+"]");
-                            }
-                        }
+                partition.newFingerprints.write(partition.fingerprintFile);
+            } catch (IOException ex) {
+                throw new ObjectStoreException("Could not write GO description fingerprints to "+partition.fingerprintFile, ex);
+            }
+            LOG.info(label+"Wrote "+partition.newFingerprints.size()+" GO description fingerprints to "+partition.fingerprintFile);
+        }
+        LongHashSet annotationSet = partition.annotationSet;
+        LOG.info(label+"GO annotation dedupe index: "+annotationSet.size()+" entries in "+annotationSet.memoryBytes()+" bytes ("
+                 +String.format("%.1f", annotationSet.memoryBytes()/(double)Math.max(1,annotationSet.size()))+" bytes/annotation).");
+    }
+
+    /**
+     * Restrict a query to features of the given organisms.
+     *
+     * @param q the query
+     * @param cs the query's AND constraint set
+     * @param qcFeature the feature class, which must have an organism reference
+     * @param organismTaxonIds the taxon ids; if empty the query is not restricted
+     */
+    static void addOrganismConstraint(Query q, ConstraintSet cs, QueryClass qcFeature, Set<Integer> organismTaxonIds) {
+        if (organismTaxonIds.isEmpty()) {
+            return;
+        }
+        QueryClass qcOrg = new QueryClass(Organism.class);
+        q.addFrom(qcOrg);
+        cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcFeature, "organism"), ConstraintOp.CONTAINS, qcOrg));
+        cs.addConstraint(new BagConstraint(new QueryField(qcOrg, "taxonId"), ConstraintOp.IN, organismTaxonIds));
+    }
+
+    /**
+     * Return the genes whose description is new or has changed since the last run, carrying the fingerprints of the
+     * others over to newFingerprints. A gene with an unchanged description is also returned if any of the annotations
+     * recorded for it are missing, e.g. because the mine was rebuilt.
+     *
+     * @param genes all the genes
+     * @param annotationSet the existing GO annotations
+     * @param oldFingerprints the fingerprints from the last run
+     * @param newFingerprints the fingerprints for this run
+     * @return the genes which need scanning
+     * @throws ObjectStoreException if a description can't be accessed
+     */
+    List<Gene> selectChangedGenes(List<Gene> genes, LongHashSet annotationSet, GODescriptionFingerprints oldFingerprints,
+                                  GODescriptionFingerprints newFingerprints) throws ObjectStoreException {
+        List<Gene> changedGenes = new ArrayList<>();
+        for (Gene gene : genes) {
+            String primaryIdentifier = gene.getPrimaryIdentifier();
+            long hash = GODescriptionFingerprints.hash(getDescription(gene));
+            Long oldHash = oldFingerprints.getHash(primaryIdentifier);
+            boolean unchanged = (oldHash!=null && oldHash.longValue()==hash);
+            int[] oldAccessions = oldFingerprints.getAccessions(primaryIdentifier);
+            int geneId = gene.getId().intValue();
+            for (int i=0; unchanged && i<oldAccessions.length; i++) {
+                unchanged = annotationSet.contains(packAnnotation(oldAccessions[i], geneId));
+            }
+            if (unchanged) {
+                newFingerprints.put(primaryIdentifier, hash, oldAccessions);
+            } else {
+                changedGenes.add(gene);
+            }
+        }
+        return changedGenes;
+    }
+
+    /**
+     * Return the (gene, GO accession) pairs which this process annotated from a gene's old description but which aren't
+     * in its new one. Only the accessions recorded in the fingerprints are considered, so annotations loaded by other
+     * sources are never stale.
+     *
+     * @param genes the scanned genes
+     * @param oldFingerprints the fingerprints from the last run
+     * @return the packed stale (gene id, GO accession) pairs
+     * @throws ObjectStoreException if a description can't be accessed
+     */
+    LongHashSet findStaleAnnotations(List<Gene> genes, GODescriptionFingerprints oldFingerprints) throws ObjectStoreException {
+        GOAccessionScanner scanner = new GOAccessionScanner();
+        LongHashSet staleSet = new LongHashSet();
+        for (Gene gene : genes) {
+            String primaryIdentifier = gene.getPrimaryIdentifier();
+            if (primaryIdentifier==null) {
+                continue;
+            }
+            int[] oldAccessions = oldFingerprints.getAccessions(primaryIdentifier);
+            if (oldAccessions.length==0) {
+                continue;
+            }
+            int goCount = scanner.scan(getDescription(gene));
+            Set<Integer> geneAccessions = new HashSet<>();
+            for (int i=0; i<goCount; i++) {
+                geneAccessions.add(scanner.get(i));
+            }
+            int geneId = gene.getId().intValue();
+            for (int oldAccession : oldAccessions) {
+                if (!geneAccessions.contains(oldAccession)) {
+                    staleSet.add(packAnnotation(oldAccession, geneId));
+                }
+            }
+        }
+        return staleSet;
+    }
+
+    /**
+     * Record the fingerprints of the scanned genes with the accessions whose annotations this process owns: those it
+     * stored on this run, and those it recorded on earlier runs which are still in the description. Annotations that
+     * already existed from other sources are not recorded, so they are never deleted as stale.
+     *
+     * @param genes the scanned genes
+     * @param oldFingerprints the fingerprints from the last run
+     * @param newFingerprints the fingerprints for this run
+     * @param storedSet the packed (gene id, GO accession) pairs stored on this run
+     * @throws ObjectStoreException if a description can't be accessed
+     */
+    void recordFingerprints(List<Gene> genes, GODescriptionFingerprints oldFingerprints, GODescriptionFingerprints newFingerprints,
+                            LongHashSet storedSet) throws ObjectStoreException {
+        GOAccessionScanner scanner = new GOAccessionScanner();
+        for (Gene gene : genes) {
+            String primaryIdentifier = gene.getPrimaryIdentifier();
+            if (primaryIdentifier==null) {
+                // can't be fingerprinted, so will be scanned on every run
+                continue;
+            }
+            String description = getDescription(gene);
+            int goCount = scanner.scan(description);
+            Set<Integer> oldAccessions = new HashSet<>();
+            for (int oldAccession : oldFingerprints.getAccessions(primaryIdentifier)) {
+                oldAccessions.add(oldAccession);
+            }
+            int geneId = gene.getId().intValue();
+            Set<Integer> ownedAccessions = new LinkedHashSet<>();
+            for (int i=0; i<goCount; i++) {
+                int accession = scanner.get(i);
+                if (oldAccessions.contains(accession) || storedSet.contains(packAnnotation(accession, geneId))) {
+                    ownedAccessions.add(accession);
+                }
+            }
+            int[] accessionArray = new int[ownedAccessions.size()];
+            int n = 0;
+            for (Integer accession : ownedAccessions) {
+                accessionArray[n++] = accession;
+            }
+            newFingerprints.put(primaryIdentifier, GODescriptionFingerprints.hash(description), accessionArray);
+        }
+    }
+
+    /**
+     * Query the GO annotations of the given (gene, GO accession) pairs.
+     *
+     * @param os the ObjectStore to query
+     * @param staleSet the packed (gene id, GO accession) pairs
+     * @return the annotations
+     */
+    List<OntologyAnnotation> getStaleAnnotations(ObjectStore os, LongHashSet staleSet) {
+        List<OntologyAnnotation> staleAnnotations = new ArrayList<>();
+        if (staleSet.size()==0) {
+            return staleAnnotations;
+        }
+        Set<Integer> geneIds = new HashSet<>();
+        staleSet.forEach(pair -> geneIds.add((int) (pair >>> 32)));
+        List<Integer> geneIdList = new ArrayList<>(geneIds);
+        for (int from=0; from<geneIdList.size(); from+=TERM_QUERY_SIZE) {
+            List<Integer> chunk = geneIdList.subList(from, Math.min(from+TERM_QUERY_SIZE, geneIdList.size()));
+            Query q = new Query();
+            ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+            // 0 OntologyAnnotation
+            QueryClass qcAnnot = new QueryClass(OntologyAnnotation.class);
+            q.addFrom(qcAnnot);
+            q.addToSelect(qcAnnot);
+            // 1 OntologyAnnotation.ontologyTerm.identifier
+            QueryClass qcTerm = new QueryClass(OntologyTerm.class);
+            q.addFrom(qcTerm);
+            QueryField qfTermIdentifier = new QueryField(qcTerm, "identifier");
+            q.addToSelect(qfTermIdentifier);
+            cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcAnnot, "ontologyTerm"), ConstraintOp.CONTAINS, qcTerm));
+            cs.addConstraint(new SimpleConstraint(qfTermIdentifier, ConstraintOp.MATCHES, new QueryValue("GO:%")));
+            // 2 OntologyAnnotation.subject.id
+            QueryClass qcSubject = new QueryClass(Annotatable.class);
+            q.addFrom(qcSubject);
+            QueryField qfSubjectId = new QueryField(qcSubject, "id");
+            q.addToSelect(qfSubjectId);
+            cs.addConstraint(new ContainsConstraint(new QueryObjectReference(qcAnnot, "subject"), ConstraintOp.CONTAINS, qcSubject));
+            cs.addConstraint(new BagConstraint(qfSubjectId, ConstraintOp.IN, new ArrayList<>(chunk)));
+            q.setConstraint(cs);
+            Iterator<?> iter = os.execute(q).iterator();
+            while (iter.hasNext()) {
+                ResultsRow<?> rr = (ResultsRow<?>) iter.next();
+                int accession = parseAccession((String) rr.get(1), 3);
+                int subjectId = ((Integer) rr.get(2)).intValue();
+                if (accession>=0 && staleSet.contains(packAnnotation(accession, subjectId))) {
+                    staleAnnotations.add((OntologyAnnotation) rr.get(0));
+                }
+            }
+        }
+        return staleAnnotations;
+    }
+
+    /**
+     * Delete the given GO annotations.
+     *
+     * @param writer the ObjectStoreWriter to delete with
+     * @param staleAnnotations the annotations to delete
+     * @param label a prefix for log messages
+     * @throws ObjectStoreException if the delete fails
+     */
+    void deleteStaleAnnotations(ObjectStoreWriter writer, List<OntologyAnnotation> staleAnnotations, String label)
+        throws ObjectStoreException {
+        if (staleAnnotations.isEmpty()) {
+            return;
+        }
+        writer.beginTransaction();
+        try {
+            for (OntologyAnnotation annotation : staleAnnotations) {
+                writer.delete(annotation);
+            }
+            writer.commitTransaction();
+        } catch (ObjectStoreException|RuntimeException ex) {
+            if (writer.isInTransaction()) {
+                writer.abortTransaction();
+            }
+            throw ex;
+        }
+        LOG.info(label+"Deleted "+staleAnnotations.size()+" GO annotations no longer in changed gene descriptions.");
+    }
+
+    /**
+     * Scan the gene descriptions on scannerThreads threads, which feed (gene, GO accession) pairs through a bounded
+     * queue to the writer on this thread.
+     *
+     * @param geneList the genes to scan
+     * @param writer the annotation writer
+     * @throws ObjectStoreException if a scanner or the writer fails
+     */
+    void scanPipelined(List<Gene> geneList, AnnotationWriter writer) throws ObjectStoreException {
+        final BlockingQueue<long[]> queue = new ArrayBlockingQueue<>(PAIR_QUEUE_CAPACITY);
+        ExecutorService executor = Executors.newFixedThreadPool(scannerThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        int size = geneList.size();
+        int partitionSize = (size + scannerThreads - 1) / scannerThreads;
+        for (int t=0; t<scannerThreads; t++) {
+            final List<Gene> partition = geneList.subList(Math.min(t*partitionSize, size), Math.min((t+1)*partitionSize, size));
+            futures.add(executor.submit(() -> {
+                scanGenes(partition, queue);
+                return null;
+            }));
+        }
+        try {
+            // each scanner ends with an empty chunk, even if it fails
+            int finished = 0;
+            while (finished<scannerThreads) {
+                long[] pairs = queue.take();
+                if (pairs.length==0) {
+                    finished++;
+                } else {
+                    for (long pair : pairs) {
+                        writer.store(pair);
+                    }
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            writer.abort();
+            throw new ObjectStoreException(ex);
+        } catch (ExecutionException ex) {
+            writer.abort();
+            throw new ObjectStoreException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Scan the descriptions of the given genes, putting chunks of packed (gene id, GO accession) pairs on the queue,
+     * followed by an empty chunk to say this scanner is done.
+     *
+     * @param genes the genes to scan
+     * @param queue the queue read by the writer
+     * @throws ObjectStoreException if a description can't be accessed
+     * @throws InterruptedException if interrupted while waiting for the writer
+     */
+    static void scanGenes(List<Gene> genes, BlockingQueue<long[]> queue) throws ObjectStoreException, InterruptedException {
+        GOAccessionScanner scanner = new GOAccessionScanner();
+        long[] pairs = new long[PAIR_CHUNK_SIZE];
+        int n = 0;
+        try {
+            for (Gene gene : genes) {
+                int goCount = scanner.scan(getDescription(gene));
+                int geneId = gene.getId().intValue();
+                for (int i=0; i<goCount; i++) {
+                    pairs[n++] = packAnnotation(scanner.get(i), geneId);
+                    if (n==PAIR_CHUNK_SIZE) {
+                        queue.put(pairs);
+                        pairs = new long[PAIR_CHUNK_SIZE];
+                        n = 0;
                     }
-                    osw.commitTransaction();
                 }
-            } catch (IllegalAccessException ex) {
-                throw new ObjectStoreException(ex);
             }
+            if (n>0) {
+                queue.put(Arrays.copyOf(pairs, n));
+            }
+        } finally {
+            queue.put(new long[0]);
+        }
+    }
+
+    /**
+     * @param gene the Gene
+     * @return the gene description, which may be null
+     * @throws ObjectStoreException if the description can't be accessed
+     */
+    static String getDescription(Gene gene) throws ObjectStoreException {
+        try {
+            return (String) gene.getFieldValue("description");
+        } catch (IllegalAccessException ex) {
+            throw new ObjectStoreException(ex);
         }
-        LOG.info("Stored "+count+" additional GO annotations.");
     }
 
-    String mashIdentifiers(String termIdentifier, String geneIdentifier) {
-        return termIdentifier+"_"+geneIdentifier;
+    /**
+     * Parse a seven-digit GO accession number starting at the given offset, e.g. 4650 from "GO:0004650" at offset 3.
+     *
+     * @param s the string holding the accession
+     * @param offset the index of the first digit
+     * @return the accession number, or -1 if there aren't seven digits at offset
+     */
+    static int parseAccession(String s, int offset) {
+        if (s==null || s.length()<offset+GOAccessionScanner.GO_DIGITS) {
+            return -1;
+        }
+        int accession = 0;
+        for (int i=offset; i<offset+GOAccessionScanner.GO_DIGITS; i++) {
+            char c = s.charAt(i);
+            if (c<'0' || c>'9') {
+                return -1;
+            }
+            accession = accession*10 + (c-'0');
+        }
+        return accession;
+    }
+
+    /**
+     * @param accession a GO accession number
+     * @return the GO term identifier, e.g. GO:0004650
+     */
+    static String formatIdentifier(int accession) {
+        return String.format("GO:%07d", accession);
+    }
+
+    /**
+     * Pack a GO accession and an annotation subject id into a single long dedupe key.
+     *
+     * @param accession the GO accession number
+     * @param subjectId the object id of the annotated subject
+     * @return the packed key
+     */
+    static long packAnnotation(int accession, int subjectId) {
+        return ((long) subjectId << 32) | (accession & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Query the OntologyTerms with the given GO accessions, TERM_QUERY_SIZE identifiers per BagConstraint query.
+     *
+     * @param os the ObjectStore to query
+     * @param accessions the GO accession numbers, e.g. 4650 for GO:0004650
+     * @return a map of accession to OntologyTerm; accessions that aren't in the mine are absent
+     */
+    Map<Integer,OntologyTerm> getOntologyTerms(ObjectStore os, Set<Integer> accessions) {
+        Map<Integer,OntologyTerm> termMap = new HashMap<>();
+        List<String> identifierList = new ArrayList<>();
+        for (Integer accession : accessions) {
+            identifierList.add(formatIdentifier(accession));
+        }
+        for (int from=0; from<identifierList.size(); from+=TERM_QUERY_SIZE) {
+            List<String> chunk = identifierList.subList(from, Math.min(from+TERM_QUERY_SIZE, identifierList.size()));
+            Query q = new Query();
+            q.setDistinct(true);
+            QueryClass qc = new QueryClass(OntologyTerm.class);
+            q.addFrom(qc);
+            q.addToSelect(qc);
+            QueryField qf = new QueryField(qc, "identifier");
+            q.setConstraint(new BagConstraint(qf, ConstraintOp.IN, new ArrayList<>(chunk)));
+            Results results = os.execute(q);
+            Iterator<?> iter = results.iterator();
+            while (iter.hasNext()) {
+                ResultsRow<?> row = (ResultsRow<?>) iter.next();
+                OntologyTerm term = (OntologyTerm) row.get(0);
+                termMap.put(parseAccession(term.getIdentifier(), 3), term);
+            }
+        }
+        return termMap;
+    }
+
+    /**
+     * The genes, terms and existing annotations of one partition, read before anything is written.
+     */
+    static class Partition {
+
+        final File fingerprintFile;
+        final String label;
+        // the existing GO annotations, as packed (gene id, GO accession) pairs
+        final LongHashSet annotationSet = new LongHashSet();
+        // the genes to scan
+        List<Gene> geneList;
+        // the GO terms mentioned in the genes' descriptions, by accession
+        Map<Integer,OntologyTerm> termMap;
+        // in incremental mode, the fingerprints of the last run and this one, and the annotations to delete
+        GODescriptionFingerprints oldFingerprints;
+        GODescriptionFingerprints newFingerprints;
+        List<OntologyAnnotation> staleAnnotations;
+
+        Partition(File fingerprintFile, String label) {
+            this.fingerprintFile = fingerprintFile;
+            this.label = label;
+        }
+    }
+
+    /**
+     * Stores GO annotations for packed (gene id, GO accession) pairs that aren't already in the mine, committing every
+     * batchSize annotations. Only one thread may use it.
+     */
+    class AnnotationWriter {
+
+        private final ObjectStoreWriter writer;
+        private final Map<Integer,OntologyTerm> termMap;
+        private final LongHashSet annotationSet;
+        private final LongHashSet storedSet;
+        private final String label;
+        private final long startTime = System.currentTimeMillis();
+        private int count = 0;
+        private int uncommitted = 0;
+
+        AnnotationWriter(ObjectStoreWriter writer, Map<Integer,OntologyTerm> termMap, LongHashSet annotationSet,
+                         LongHashSet storedSet, String label) {
+            this.writer = writer;
+            this.termMap = termMap;
+            this.annotationSet = annotationSet;
+            this.storedSet = storedSet;
+            this.label = label;
+        }
+
+        /**
+         * Store an annotation for the given pair unless its term isn't in the mine or it already exists.
+         * @param pair the packed gene id and GO accession
+         * @throws ObjectStoreException if the store or commit fails
+         */
+        void store(long pair) throws ObjectStoreException {
+            int accession = (int) pair;
+            int geneId = (int) (pair >>> 32);
+            OntologyTerm term = termMap.get(accession);
+            // add() also guards against the same GO number appearing twice in one description
+            if (term==null || !annotationSet.add(pair)) {
+                return;
+            }
+            if (storedSet!=null) {
+                storedSet.add(pair);
+            }
+            try {
+                if (uncommitted==0) {
+                    writer.beginTransaction();
+                }
+                OntologyAnnotation goAnnotation = (OntologyAnnotation) DynamicUtil.createObject(Collections.singleton(OntologyAnnotation.class));
+                goAnnotation.setFieldValue("ontologyTerm", term);
+                goAnnotation.setFieldValue("subject", new ProxyReference(writer.getObjectStore(), geneId, Gene.class));
+                writer.store(goAnnotation);
+                count++;
+                uncommitted++;
+                if (uncommitted>=batchSize) {
+                    writer.commitTransaction();
+                    uncommitted = 0;
+                }
+            } catch (ObjectStoreException|RuntimeException ex) {
+                abort();
+                throw ex;
+            }
+        }
+
+        /**
+         * Commit any remaining annotations and log the throughput.
+         * @throws ObjectStoreException if the commit fails
+         */
+        void close() throws ObjectStoreException {
+            if (uncommitted>0) {
+                try {
+                    writer.commitTransaction();
+                    uncommitted = 0;
+                } catch (ObjectStoreException|RuntimeException ex) {
+                    abort();
+                    throw ex;
+                }
+            }
+            double seconds = Math.max(1L, System.currentTimeMillis()-startTime)/1000.0;
+            LOG.info(label+"Stored "+count+" additional GO annotations in "+String.format("%.1f", seconds)+" s ("
+                     +String.format("%.0f", count/seconds)+" annotations/s).");
+        }
+
+        /**
+         * Roll back the uncommitted annotations after a failure, so the writer isn't left in a transaction.
+         * @throws ObjectStoreException if the rollback fails
+         */
+        void abort() throws ObjectStoreException {
+            uncommitted = 0;
+            if (writer.isInTransaction()) {
+                writer.abortTransaction();
+            }
+        }
     }
 }
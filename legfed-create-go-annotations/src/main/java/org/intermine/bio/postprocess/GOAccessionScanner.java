@@ -0,0 +1,99 @@
+package org.intermine.bio.postprocess;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, Legume Federation
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+/**
+ * Single-pass scanner that pulls the seven-digit GO accessions out of free text, e.g. a gene description, straight
+ * into ints without creating substrings. An accession may be followed by any delimiter or by the end of the text;
+ * "GO:" followed by anything other than exactly seven digits is ignored.
+ *
+ * An instance reuses its buffer between calls, so it is not thread-safe; use one per thread.
+ */
+public class GOAccessionScanner {
+
+    // number of digits in a GO accession, e.g. GO:0004650
+    static final int GO_DIGITS = 7;
+
+    private int[] accessions = new int[16];
+    private int count = 0;
+
+    /**
+     * Scan the given text for GO accessions.
+     *
+     * @param text the text to scan, may be null
+     * @return the number of accessions found, which are then available from get()
+     */
+    public int scan(CharSequence text) {
+        count = 0;
+        if (text == null) {
+            return 0;
+        }
+        int length = text.length();
+        int last = length - (3 + GO_DIGITS);
+        int i = 0;
+        while (i <= last) {
+            if (text.charAt(i) != 'G' || text.charAt(i + 1) != 'O' || text.charAt(i + 2) != ':') {
+                i++;
+                continue;
+            }
+            int accession = 0;
+            int j = i + 3;
+            int end = j + GO_DIGITS;
+            while (j < end) {
+                char c = text.charAt(j);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                accession = accession * 10 + (c - '0');
+                j++;
+            }
+            if (j == end && (end == length || !isDigit(text.charAt(end)))) {
+                add(accession);
+                i = end;
+            } else {
+                // not a seven-digit accession; carry on from the first character that broke it
+                i = Math.max(j, i + 3);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param index the index of an accession found by the last scan
+     * @return the accession number, e.g. 4650 for GO:0004650
+     */
+    public int get(int index) {
+        if (index >= count) {
+            throw new IndexOutOfBoundsException("index " + index + " >= count " + count);
+        }
+        return accessions[index];
+    }
+
+    /**
+     * @return the number of accessions found by the last scan
+     */
+    public int getCount() {
+        return count;
+    }
+
+    private void add(int accession) {
+        if (count == accessions.length) {
+            int[] grown = new int[count * 2];
+            System.arraycopy(accessions, 0, grown, 0, count);
+            accessions = grown;
+        }
+        accessions[count++] = accession;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,164 @@
+package org.intermine.bio.postprocess;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, Legume Federation
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The gene description fingerprints persisted between runs of CreateGOAnnotationsProcess: for each gene
+ * primaryIdentifier, a 64-bit hash of its description and the GO accessions in it whose annotations were created
+ * by the process. A gene whose description hash hasn't changed doesn't need to be parsed again.
+ *
+ * The file is binary: a header, the entry count, then per gene its primaryIdentifier (modified UTF-8),
+ * the hash, the accession count and the accessions.
+ */
+public class GODescriptionFingerprints {
+
+    // file header, "GOFP" plus a format version
+    private static final int MAGIC = 0x474F4650;
+    private static final int VERSION = 1;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int[] NO_ACCESSIONS = new int[0];
+
+    private final Map<String, Long> hashes = new HashMap<String, Long>();
+    private final Map<String, int[]> accessions = new HashMap<String, int[]>();
+
+    /**
+     * @param primaryIdentifier the gene primaryIdentifier
+     * @return true if there is a fingerprint for the gene
+     */
+    public boolean contains(String primaryIdentifier) {
+        return hashes.containsKey(primaryIdentifier);
+    }
+
+    /**
+     * @param primaryIdentifier the gene primaryIdentifier
+     * @return the description hash, or null if there is no fingerprint for the gene
+     */
+    public Long getHash(String primaryIdentifier) {
+        return hashes.get(primaryIdentifier);
+    }
+
+    /**
+     * @param primaryIdentifier the gene primaryIdentifier
+     * @return the GO accessions annotated from the description, empty if there is no fingerprint for the gene
+     */
+    public int[] getAccessions(String primaryIdentifier) {
+        int[] a = accessions.get(primaryIdentifier);
+        return (a == null) ? NO_ACCESSIONS : a;
+    }
+
+    /**
+     * Set the fingerprint of a gene.
+     * @param primaryIdentifier the gene primaryIdentifier
+     * @param hash the description hash
+     * @param geneAccessions the GO accessions annotated from the description
+     */
+    public void put(String primaryIdentifier, long hash, int[] geneAccessions) {
+        hashes.put(primaryIdentifier, hash);
+        accessions.put(primaryIdentifier, (geneAccessions.length == 0) ? NO_ACCESSIONS : geneAccessions);
+    }
+
+    /**
+     * @return the number of genes with fingerprints
+     */
+    public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a description; null and empty descriptions hash to different values.
+     * @param description the gene description, may be null
+     * @return the hash
+     */
+    public static long hash(CharSequence description) {
+        if (description == null) {
+            return 0L;
+        }
+        long h = FNV_OFFSET_BASIS;
+        for (int i = 0; i < description.length(); i++) {
+            char c = description.charAt(i);
+            h = (h ^ (c & 0xff)) * FNV_PRIME;
+            h = (h ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    /**
+     * Read fingerprints from a file; a missing file gives an empty set of fingerprints.
+     * @param file the fingerprint file
+     * @return the fingerprints
+     * @throws IOException if the file can't be read or isn't a fingerprint file
+     */
+    public static GODescriptionFingerprints read(File file) throws IOException {
+        GODescriptionFingerprints fingerprints = new GODescriptionFingerprints();
+        if (!file.exists()) {
+            return fingerprints;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a GO description fingerprint file.");
+            }
+            if (in.readInt() != VERSION) {
+                throw new IOException(file + " is not a version " + VERSION + " GO description fingerprint file.");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String primaryIdentifier = in.readUTF();
+                long hash = in.readLong();
+                int[] geneAccessions = new int[in.readInt()];
+                for (int j = 0; j < geneAccessions.length; j++) {
+                    geneAccessions[j] = in.readInt();
+                }
+                fingerprints.put(primaryIdentifier, hash, geneAccessions);
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Write the fingerprints to a file, via a temporary file so an interrupted run leaves the old file intact.
+     * @param file the fingerprint file
+     * @throws IOException if the file can't be written
+     */
+    public void write(File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(hashes.size());
+            for (Map.Entry<String, Long> entry : hashes.entrySet()) {
+                int[] geneAccessions = getAccessions(entry.getKey());
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+                out.writeInt(geneAccessions.length);
+                for (int accession : geneAccessions) {
+                    out.writeInt(accession);
+                }
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,94 @@
+package org.intermine.bio.postprocess;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, Legume Federation
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests for GOAccessionScanner.
+ */
+public class GOAccessionScannerTest {
+
+    private final GOAccessionScanner scanner = new GOAccessionScanner();
+
+    // the accessions found in the text
+    private int[] scan(CharSequence text) {
+        int[] accessions = new int[scanner.scan(text)];
+        for (int i = 0; i < accessions.length; i++) {
+            accessions[i] = scanner.get(i);
+        }
+        return accessions;
+    }
+
+    @Test
+    public void testAccessionAtEndOfText() {
+        assertArrayEquals(new int[] {4650}, scan("polygalacturonase GO:0004650"));
+        assertArrayEquals(new int[] {4650}, scan("GO:0004650"));
+    }
+
+    @Test
+    public void testAccessionFollowedByPunctuation() {
+        assertArrayEquals(new int[] {4650, 5975, 16787},
+                          scan("PG (GO:0004650,GO:0005975; GO:0016787)."));
+    }
+
+    @Test
+    public void testEightDigitsRejected() {
+        assertArrayEquals(new int[0], scan("GO:00046501"));
+        assertArrayEquals(new int[] {3677}, scan("GO:00046501 GO:0003677"));
+    }
+
+    @Test
+    public void testNoDigitsRejected() {
+        assertArrayEquals(new int[0], scan("GO:"));
+        assertArrayEquals(new int[0], scan("see GO: for details"));
+        assertArrayEquals(new int[] {3677}, scan("GO:GO:0003677"));
+    }
+
+    @Test
+    public void testTooFewDigitsRejected() {
+        assertArrayEquals(new int[0], scan("GO:000465"));
+        assertArrayEquals(new int[0], scan("GO:000465x"));
+    }
+
+    @Test
+    public void testNullAndEmpty() {
+        assertEquals(0, scanner.scan(null));
+        assertEquals(0, scanner.scan(""));
+    }
+
+    @Test
+    public void testManyAccessionsGrowBuffer() {
+        StringBuilder text = new StringBuilder();
+        int[] expected = new int[40];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = 8150 + i;
+            text.append(String.format("GO:%07d ", expected[i]));
+        }
+        assertArrayEquals(expected, scan(text));
+    }
+
+    @Test
+    public void testScanResetsCount() {
+        scanner.scan("GO:0004650 GO:0005975");
+        assertEquals(0, scanner.scan("no accessions here"));
+        assertEquals(0, scanner.getCount());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGetBeyondCount() {
+        scanner.scan("GO:0004650");
+        scanner.get(1);
+    }
+}
@@ -10,17 +10,27 @@ package org.intermine.bio.postprocess;
  *
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.intermine.bio.util.PostProcessUtil;
 import org.intermine.postprocess.PostProcessor;
-import org.intermine.bio.util.BioQueries;
-import org.intermine.metadata.ClassDescriptor;
-import org.intermine.metadata.MetaDataException;
+import org.intermine.metadata.ConstraintOp;
 import org.intermine.model.bio.Gene;
 import org.intermine.model.bio.GeneFamily;
 import org.intermine.model.bio.Homologue;
@@ -28,24 +38,97 @@ import org.intermine.model.bio.Protein;
 import org.intermine.objectstore.ObjectStore;
 import org.intermine.objectstore.ObjectStoreException;
 import org.intermine.objectstore.ObjectStoreWriter;
+import org.intermine.objectstore.proxy.ProxyReference;
+import org.intermine.objectstore.query.BagConstraint;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.ContainsConstraint;
 import org.intermine.objectstore.query.Query;
 import org.intermine.objectstore.query.QueryClass;
-import org.intermine.objectstore.query.Results;
+import org.intermine.objectstore.query.QueryCollectionReference;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryForeignKey;
+import org.intermine.objectstore.query.QueryFunction;
+import org.intermine.objectstore.query.QueryValue;
 import org.intermine.objectstore.query.ResultsRow;
+import org.intermine.objectstore.query.SimpleConstraint;
 import org.intermine.util.DynamicUtil;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
 /**
  * Create homologue records, each of which ties a gene to another gene in the same gene family.
  *
+ * The families are paired up in parallel on a fork-join pool. Each family's gene pairs are generated a chunk at a
+ * time and handed to a single thread, so the full list of pairs is never held in memory.
+ *
+ * Families larger than maxFamilySize, if set, are not fully paired: either only genes of different organisms are
+ * paired, or each gene gets a fixed number of homologues.
+ *
+ * A gene in more than one family, e.g. at different clustering levels, would be paired with the same gene more than
+ * once, so the pairs are deduplicated with an external sort in a fixed amount of memory before they are stored.
+ *
+ * With a membership file, a run only recreates the Homologues of the families whose members have changed, as long
+ * as the mine still has the Homologues the last run left.
+ *
+ * The gene pairs can be split into shards by a hash of each pair, so that several invocations share the work. Each
+ * Homologue belongs to exactly one shard, which is the only one that deletes or stores it, so shards can run at the
+ * same time without touching each other's Homologues. Every shard still generates all the pairs, so sharding only
+ * divides the database work.
+ *
  * @author Sam Hokin
  */
 public class CreateHomologuesProcess extends PostProcessor {
 
     private static final Logger LOG = Logger.getLogger(CreateHomologuesProcess.class);
+
+    // number of packed gene pairs handed to the writer at a time
+    private static final int PAIR_CHUNK_SIZE = 1024;
+    // number of chunks the generators may get ahead of the writer
+    private static final int PAIR_QUEUE_CAPACITY = 64;
+    // number of Homologue ids read by each delete query
+    private static final int DELETE_ID_RANGE = 1000000;
+
     private ObjectStore os;
 
+    // number of Homologues stored per transaction
+    private int batchSize = 1000;
+
+    // fork-join parallelism for pair generation, 0 for the number of processors
+    private int threads = 0;
+
+    // families with more genes than this are paired with the largeFamilyStrategy, 0 for no limit
+    private int maxFamilySize = 0;
+
+    // how families larger than maxFamilySize are paired
+    private LargeFamilyStrategy largeFamilyStrategy = LargeFamilyStrategy.CROSS_ORGANISM;
+
+    // the number of homologues per gene in a large family with the CAP strategy
+    private int maxPairsPerGene = 100;
+
+    // number of gene pairs sorted in memory, 8 bytes each, before spilling a run to disk
+    private int sortBufferSize = 4*1024*1024;
+
+    // directory for the sort run files, null for java.io.tmpdir
+    private File tempDir;
+
+    // file of the family memberships recorded by the last run, suffixed by the shard index when sharded, if any
+    private File membershipFile;
+
+    // this invocation handles the gene pairs in shard shardIndex of shardCount
+    private int shardIndex = 0;
+    private int shardCount = 1;
+
+    /**
+     * How the genes of a family larger than maxFamilySize are paired.
+     */
+    enum LargeFamilyStrategy {
+        // only pair genes of different organisms
+        CROSS_ORGANISM,
+        // pair each gene with at most maxPairsPerGene others
+        CAP
+    }
+
     /**
      * Create a new CreateHomologuesProcess object that will operate on the given
      * ObjectStoreWriter.
@@ -57,6 +140,123 @@ public class CreateHomologuesProcess extends PostProcessor {
         this.os = osw.getObjectStore();
     }
 
+    /**
+     * Set the number of Homologues to store per transaction, default 1000.
+     * @param batchSize the number of Homologues per transaction
+     */
+    public void setBatchSize(String batchSize) {
+        if (!StringUtils.isEmpty(batchSize)) {
+            this.batchSize = Integer.parseInt(batchSize.trim());
+        }
+    }
+
+    /**
+     * Set the number of threads generating gene pairs; if not set, one per processor.
+     * @param threads the fork-join pool parallelism
+     */
+    public void setThreads(String threads) {
+        if (!StringUtils.isEmpty(threads)) {
+            this.threads = Integer.parseInt(threads.trim());
+        }
+    }
+
+    /**
+     * Set the family size above which the largeFamilyStrategy is used instead of pairing every gene with every other
+     * gene, e.g. for transposon-related families with thousands of genes. If not set, all families are fully paired.
+     * @param maxFamilySize the largest family that is fully paired
+     */
+    public void setMaxFamilySize(String maxFamilySize) {
+        if (!StringUtils.isEmpty(maxFamilySize)) {
+            this.maxFamilySize = Integer.parseInt(maxFamilySize.trim());
+        }
+    }
+
+    /**
+     * Set how families larger than maxFamilySize are paired: cross-organism (the default) only pairs genes of
+     * different organisms; cap pairs each gene with at most maxPairsPerGene others.
+     * @param largeFamilyStrategy cross-organism or cap
+     */
+    public void setLargeFamilyStrategy(String largeFamilyStrategy) {
+        if (!StringUtils.isEmpty(largeFamilyStrategy)) {
+            this.largeFamilyStrategy = LargeFamilyStrategy.valueOf(largeFamilyStrategy.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    /**
+     * Set the number of homologues of each gene in a family larger than maxFamilySize with the cap strategy,
+     * default 100. The gene is paired with the genes either side of it in gene id order, so the pairs are symmetric.
+     * @param maxPairsPerGene the number of homologues per gene
+     */
+    public void setMaxPairsPerGene(String maxPairsPerGene) {
+        if (!StringUtils.isEmpty(maxPairsPerGene)) {
+            this.maxPairsPerGene = Integer.parseInt(maxPairsPerGene.trim());
+        }
+    }
+
+    /**
+     * Set the number of gene pairs sorted in memory when deduplicating, default 4194304 (32 MB). More pairs than this
+     * are sorted in runs which are written to temporary files and merged.
+     * @param sortBufferSize the number of pairs sorted in memory
+     */
+    public void setSortBufferSize(String sortBufferSize) {
+        if (!StringUtils.isEmpty(sortBufferSize)) {
+            this.sortBufferSize = Integer.parseInt(sortBufferSize.trim());
+        }
+    }
+
+    /**
+     * Set the directory for the temporary sort run files; if not set, java.io.tmpdir.
+     * @param tempDir the directory
+     */
+    public void setTempDir(String tempDir) {
+        if (!StringUtils.isEmpty(tempDir)) {
+            this.tempDir = new File(tempDir.trim());
+        }
+    }
+
+    /**
+     * Set a file in which to record the members of each gene family, so that the next run only deletes and recreates
+     * the Homologues of the families whose members have changed, or which have gone. When sharded, each shard has its
+     * own file, named by appending .SHARDINDEX. The file also records how many Homologues the run left, and if the
+     * mine has a different number, e.g. because it was rebuilt with the same object ids, all the Homologues are
+     * recreated, as they are if maxFamilySize, largeFamilyStrategy or maxPairsPerGene has changed. Delete the file to
+     * force a full rebuild.
+     * @param membershipFile the membership file path
+     */
+    public void setMembershipFile(String membershipFile) {
+        if (!StringUtils.isEmpty(membershipFile)) {
+            this.membershipFile = new File(membershipFile.trim());
+        }
+    }
+
+    /**
+     * Set the index of the shard of the gene pairs that this invocation handles, from 0 to shardCount-1.
+     * @param shardIndex the shard index
+     */
+    public void setShardIndex(String shardIndex) {
+        if (!StringUtils.isEmpty(shardIndex)) {
+            this.shardIndex = Integer.parseInt(shardIndex.trim());
+        }
+    }
+
+    /**
+     * Set the number of shards the gene pairs are split into, so that several invocations, e.g. on different machines,
+     * can each delete and create their own Homologues at the same time. Every shard reads all the families, but only
+     * stores the pairs that hash to it, so no pair is stored twice or deleted by another shard. Default 1, no sharding.
+     *
+     * Sharding splits the database work, not the pairing: each shard still generates every pair of every family, all
+     * O(n^2) of them for a family of n genes, and discards the ones that aren't its own, so shardCount shards do
+     * shardCount times the pairing work between them. That pays when storing and deleting Homologues dominates, as it
+     * usually does; with large families set maxFamilySize too. Splitting by family instead would have a pair of genes
+     * that share families in different shards stored by both.
+     * @param shardCount the number of shards
+     */
+    public void setShardCount(String shardCount) {
+        if (!StringUtils.isEmpty(shardCount)) {
+            this.shardCount = Integer.parseInt(shardCount.trim());
+        }
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -65,121 +265,637 @@ public class CreateHomologuesProcess extends PostProcessor {
      * @throws ObjectStoreException if the objectstore throws an exception
      */
     public void postProcess() throws ObjectStoreException {
+        if (shardIndex<0 || shardIndex>=shardCount) {
+            throw new IllegalArgumentException("shardIndex "+shardIndex+" is not between 0 and shardCount-1 ("+(shardCount-1)+").");
+        }
+
+        String label = (shardCount>1) ? "[shard "+shardIndex+"/"+shardCount+"] " : "";
 
-        LOG.info("Deleting existing Homologues...");
-
-        // delete existing Homologue objects by first loading them into a collection...
-        List<Homologue> homoList = new LinkedList<Homologue>();
-        Query qHomo = new Query();
-        QueryClass qcHomo = new QueryClass(Homologue.class);
-        qHomo.addToSelect(qcHomo);
-        qHomo.addFrom(qcHomo);
-        Results homoResults = os.execute(qHomo);
-        Iterator<?> homoIter = homoResults.iterator();
-        while (homoIter.hasNext()) {
-            ResultsRow<?> rr = (ResultsRow<?>) homoIter.next();
-            homoList.add((Homologue)rr.get(0));
-        }
-        // ...and then deleting them
-        osw.beginTransaction();
-        for (Homologue homo : homoList) {
-            osw.delete(homo);
-        }
-        osw.commitTransaction();
-
-        // now run through the gene families, creating a gene.homologues Homologue for each gene pair
-        List<GeneFamily> gfList = new LinkedList<GeneFamily>();
-        Query gfQuery = new Query();
-        QueryClass gfQueryClass = new QueryClass(GeneFamily.class);
-        gfQuery.addToSelect(gfQueryClass);
-        gfQuery.addFrom(gfQueryClass);
-        Results gfResults = os.execute(gfQuery);
-        Iterator<?> gfIter = gfResults.iterator();
-        while (gfIter.hasNext()) {
-            ResultsRow<?> rr = (ResultsRow<?>) gfIter.next();
-            GeneFamily gf = (GeneFamily)rr.get(0);
-            List<Gene> genes = new LinkedList<>();
-            for (Protein protein : gf.getProteins()) {
-                for (Gene gene : protein.getGenes()) {
-                    genes.add(gene);
-                }
-            }
-        }
-    }
-
-    // private void createAndStoreFlankingRegion(Chromosome chr, Location geneLoc, Gene gene) throws ObjectStoreException {
-	
-    //     // This code can't cope with chromosomes that don't have a length
-    //     if (chr.getLength() == null) {
-    //         //LOG.warn("Attempted to create Homologues on a chromosome without a length: " + chr.getPrimaryIdentifier());
-    //         return;
-    //     }
-
-    //     for (double distance : distances) {
-    //         for (String direction : directions) {
-    //             for (boolean includeGene : includeGenes) {
-    //                 String strand = geneLoc.getStrand();
-
-    //                 // TODO what do we do if strand not set?
-    //                 int geneStart = geneLoc.getStart().intValue();
-    //                 int geneEnd = geneLoc.getEnd().intValue();
-    //                 int chrLength = chr.getLength().intValue();
-
-    //                 // gene touches a chromosome end so there isn't a flanking region
-    //                 if ((geneStart <= 1) || (geneEnd >= chrLength)) {
-    //                     continue;
-    //                 }
-
-    //                 Homologue region = (Homologue) DynamicUtil.createObject(Collections.singleton(Homologue.class));
-    //                 Location location = (Location) DynamicUtil.createObject(Collections.singleton(Location.class));
-
-    //                 region.setDistance("" + distance + "kb");
-    //                 region.setDirection(direction);
-    //                 try {
-    //                     PostProcessUtil.checkFieldExists(os.getModel(), "Homologue", "includeGene", "Not setting");
-    //                     region.setFieldValue("includeGene", Boolean.valueOf(includeGene));
-    //                 } catch (MetaDataException e) {
-    //                     // Homologue.includeGene not in model so do nothing
-    //                 }
-    //                 region.setGene(gene);
-    //                 region.setChromosome(chr);
-    //                 region.setChromosomeLocation(location);
-    //                 region.setOrganism(gene.getOrganism());
-    //                 region.setPrimaryIdentifier(gene.getPrimaryIdentifier() + " " + distance + "kb " + direction);
-
-    //                 // this should be some clever algorithm
-    //                 int start, end;
-
-    //                 if ("upstream".equals(direction) && "1".equals(strand)) {
-    //                     start = geneStart - (int) Math.round(distance * 1000);
-    //                     end = includeGene ? geneEnd : geneStart - 1;
-    //                 } else if ("upstream".equals(direction) && "-1".equals(strand)) {
-    //                     start = includeGene ? geneStart : geneEnd + 1;
-    //                     end = geneEnd + (int) Math.round(distance * 1000);
-    //                 } else if ("downstream".equals(direction) && "1".equals(strand)) {
-    //                     start = includeGene ? geneStart : geneEnd + 1;
-    //                     end = geneEnd + (int) Math.round(distance * 1000);
-    //                 } else {  // "downstream".equals(direction) && strand.equals("-1")
-    //                     start = geneStart - (int) Math.round(distance * 1000);
-    //                     end = includeGene ? geneEnd : geneStart - 1;
-    //                 }
-
-    //                 // if the region hangs off the start or end of a chromosome set it to finish
-    //                 // at the end of the chromosome
-    //                 location.setStart(new Integer(Math.max(start, 1)));
-    //                 int e = Math.min(end, chr.getLength().intValue());
-    //                 location.setEnd(new Integer(e));
-
-    //                 location.setStrand(strand);
-    //                 location.setLocatedOn(chr);
-    //                 location.setFeature(region);
-
-    //                 region.setLength(new Integer((location.getEnd().intValue() - location.getStart().intValue()) + 1));
-
-    //                 osw.store(location);
-    //                 osw.store(region);
-    //             }
-    //         }
-    //     }
-    // }
+        // read the family members first, since an incremental run deletes the Homologues of changed families
+        List<Family> families = getFamilies();
+        LOG.info(label+"Found "+families.size()+" gene families with more than one gene.");
+
+        // in an incremental run, only the families whose members have changed since the last run are paired again
+        File shardMembershipFile = null;
+        HomologueFamilyMemberships oldMemberships = null;
+        if (membershipFile!=null) {
+            shardMembershipFile = (shardCount>1) ? new File(membershipFile.getPath()+"."+shardIndex) : membershipFile;
+            if (shardMembershipFile.exists()) {
+                try {
+                    oldMemberships = HomologueFamilyMemberships.read(shardMembershipFile);
+                } catch (IOException ex) {
+                    throw new ObjectStoreException("Could not read gene family memberships from "+shardMembershipFile, ex);
+                }
+            }
+        }
+        // the Homologues of large families depend on how they were paired
+        if (oldMemberships!=null && !hasLargeFamilySettings(oldMemberships)) {
+            LOG.warn(label+"The large family settings have changed since "+shardMembershipFile+" was written; recreating all the Homologues.");
+            oldMemberships = null;
+        }
+        HomologueFamilyMemberships newMemberships = new HomologueFamilyMemberships();
+        newMemberships.setLargeFamilySettings(maxFamilySize, largeFamilyStrategy.name(), maxPairsPerGene);
+        for (Family family : families) {
+            newMemberships.put(family.id, family.geneIds);
+        }
+
+        List<Family> pairFamilies = families;
+        // gene pairs that share an unchanged family already have their Homologues
+        Map<Integer,int[]> keepMemberships = null;
+        // the number of this shard's Homologues left in place
+        long keptCount = 0;
+        if (oldMemberships==null) {
+            LOG.info(label+"Deleting existing Homologues...");
+            deleteHomologues(null, null, label);
+        } else {
+            pairFamilies = new ArrayList<>();
+            // only a fully paired family has a Homologue for every pair of its genes, so only those are kept
+            List<int[]> unchangedMembers = new ArrayList<>();
+            List<Family> unchangedLarge = new ArrayList<>();
+            Set<Integer> unchangedIds = new HashSet<>();
+            for (Family family : families) {
+                Long oldHash = oldMemberships.getHash(family.id);
+                if (oldHash!=null && oldHash.equals(newMemberships.getHash(family.id))) {
+                    if (isLarge(family)) {
+                        unchangedLarge.add(family);
+                    } else {
+                        unchangedMembers.add(family.geneIds);
+                    }
+                    unchangedIds.add(family.id);
+                } else {
+                    pairFamilies.add(family);
+                }
+            }
+            // the old members of the families that have changed or gone
+            List<int[]> affectedMembers = new ArrayList<>();
+            Set<Integer> affectedGenes = new HashSet<>();
+            int goneCount = 0;
+            for (Integer familyId : oldMemberships.getFamilyIds()) {
+                if (newMemberships.getHash(familyId)==null) {
+                    goneCount++;
+                }
+                if (!unchangedIds.contains(familyId)) {
+                    affectedMembers.add(oldMemberships.getMembers(familyId));
+                    for (int geneId : oldMemberships.getMembers(familyId)) {
+                        affectedGenes.add(geneId);
+                    }
+                }
+            }
+            for (Family family : pairFamilies) {
+                for (int geneId : family.geneIds) {
+                    affectedGenes.add(geneId);
+                }
+            }
+            // a Homologue between two genes of an unchanged large family that is deleted with a changed family may be
+            // one the large family doesn't pair, so such large families are deleted and paired again too, which may
+            // take in further large families
+            int repairedCount = 0;
+            boolean repaired = true;
+            while (repaired) {
+                repaired = false;
+                for (Iterator<Family> iter = unchangedLarge.iterator(); iter.hasNext(); ) {
+                    Family family = iter.next();
+                    if (hasAny(family.geneIds, affectedGenes)) {
+                        iter.remove();
+                        pairFamilies.add(family);
+                        affectedMembers.add(family.geneIds);
+                        for (int geneId : family.geneIds) {
+                            affectedGenes.add(geneId);
+                        }
+                        repairedCount++;
+                        repaired = true;
+                    }
+                }
+            }
+            LOG.info(label+(unchangedIds.size()-repairedCount)+" families are unchanged since the last run, "+(pairFamilies.size()-repairedCount)
+                     +" are new or changed, "+goneCount+" have gone and "+repairedCount+" large families share genes with those that have changed.");
+            keepMemberships = getGeneMemberships(unchangedMembers, affectedGenes);
+            LOG.info(label+"Deleting the Homologues of changed families...");
+            long[] counts = deleteHomologues(getGeneMemberships(affectedMembers, null), keepMemberships, label);
+            // the ids in the file are only meaningful if this is the mine the last run left, e.g. not a rebuild that
+            // reused the same ids before this process has run
+            if (counts[0]!=oldMemberships.getHomologueCount()) {
+                LOG.warn(label+"Found "+counts[0]+" Homologues but the last run left "+oldMemberships.getHomologueCount()
+                         +", so "+shardMembershipFile+" doesn't describe this mine; recreating all the Homologues.");
+                deleteHomologues(null, null, label);
+                pairFamilies = families;
+                keepMemberships = null;
+            } else {
+                keptCount = counts[0]-counts[1];
+            }
+        }
+
+        // now create a gene.homologues Homologue for each gene pair
+        // genes in more than one family would be paired more than once, so the pairs are deduplicated by external sort
+        HomologuePairSorter sorter = new HomologuePairSorter(sortBufferSize, tempDir);
+        long storedCount;
+        try {
+            generatePairs(pairFamilies, sorter);
+            LOG.info(label+"Generated "+sorter.getCount()+" pairs, "
+                     +(sorter.getRunCount()==0 ? "sorting in memory." : "merging "+(sorter.getRunCount()+1)+" sorted runs."));
+            HomologueWriter homologueWriter = new HomologueWriter(osw, label);
+            final Map<Integer,int[]> keep = keepMemberships;
+            sorter.drain(pair -> {
+                if (keep==null || !shareFamily(keep.get((int) (pair >>> 32)), keep.get((int) pair))) {
+                    homologueWriter.store(pair);
+                }
+            });
+            homologueWriter.close();
+            storedCount = homologueWriter.count;
+        } catch (IOException ex) {
+            throw new ObjectStoreException("Could not sort the gene pairs in "+(tempDir==null ? System.getProperty("java.io.tmpdir") : tempDir), ex);
+        } finally {
+            sorter.close();
+        }
+
+        if (shardMembershipFile!=null) {
+            newMemberships.setHomologueCount(keptCount+storedCount);
+            try {
+                newMemberships.write(shardMembershipFile);
+            } catch (IOException ex) {
+                throw new ObjectStoreException("Could not write gene family memberships to "+shardMembershipFile, ex);
+            }
+            LOG.info(label+"Wrote "+newMemberships.size()+" gene family memberships to "+shardMembershipFile);
+        }
+    }
+
+    /**
+     * Read the member genes of every GeneFamily, with their organisms, in a single query joining GeneFamily, Protein
+     * and Gene which returns only ids, ordered by family so each family is complete when the next one starts.
+     *
+     * @return the families with more than one member gene
+     */
+    List<Family> getFamilies() {
+        LOG.info("Querying GeneFamily member genes...");
+        Query q = new Query();
+        q.setDistinct(true);
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        // 0 GeneFamily.id
+        QueryClass qcFamily = new QueryClass(GeneFamily.class);
+        q.addFrom(qcFamily);
+        QueryField qfFamilyId = new QueryField(qcFamily, "id");
+        q.addToSelect(qfFamilyId);
+        // GeneFamily.proteins
+        QueryClass qcProtein = new QueryClass(Protein.class);
+        q.addFrom(qcProtein);
+        cs.addConstraint(new ContainsConstraint(new QueryCollectionReference(qcFamily, "proteins"), ConstraintOp.CONTAINS, qcProtein));
+        // 1 GeneFamily.proteins.genes.id
+        QueryClass qcGene = new QueryClass(Gene.class);
+        q.addFrom(qcGene);
+        QueryField qfGeneId = new QueryField(qcGene, "id");
+        q.addToSelect(qfGeneId);
+        cs.addConstraint(new ContainsConstraint(new QueryCollectionReference(qcProtein, "genes"), ConstraintOp.CONTAINS, qcGene));
+        // 2 GeneFamily.proteins.genes.organism id, straight from the foreign key
+        q.addToSelect(new QueryForeignKey(qcGene, "organism"));
+        q.setConstraint(cs);
+        q.addToOrderBy(qfFamilyId);
+        q.addToOrderBy(qfGeneId);
+
+        List<Family> families = new ArrayList<>();
+        int familyId = 0;
+        int[] geneIds = new int[16];
+        int[] organismIds = new int[16];
+        int n = 0;
+        Iterator<?> iter = os.execute(q, 5000, true, false, false).iterator();
+        while (iter.hasNext()) {
+            ResultsRow<?> rr = (ResultsRow<?>) iter.next();
+            int rowFamilyId = ((Integer) rr.get(0)).intValue();
+            if (n>0 && rowFamilyId!=familyId) {
+                addFamily(families, familyId, geneIds, organismIds, n);
+                n = 0;
+            }
+            familyId = rowFamilyId;
+            if (n==geneIds.length) {
+                geneIds = Arrays.copyOf(geneIds, n*2);
+                organismIds = Arrays.copyOf(organismIds, n*2);
+            }
+            geneIds[n] = ((Integer) rr.get(1)).intValue();
+            organismIds[n] = (rr.get(2)==null) ? 0 : ((Integer) rr.get(2)).intValue();
+            n++;
+        }
+        if (n>0) {
+            addFamily(families, familyId, geneIds, organismIds, n);
+        }
+        return families;
+    }
+
+    // add a family read by getFamilies() if it has more than one gene, so any pairs
+    private void addFamily(List<Family> families, int familyId, int[] geneIds, int[] organismIds, int n) {
+        if (n>1) {
+            families.add(new Family(familyId, Arrays.copyOf(geneIds, n), Arrays.copyOf(organismIds, n)));
+        }
+    }
+
+    /**
+     * Return the shard that handles a gene pair. The packed pairs are hashed and the 32-bit hash range is divided
+     * evenly between the shards, so pairs are spread evenly however the gene ids are distributed.
+     *
+     * @param pair the packed gene id and homologue gene id
+     * @return the shard index, from 0 to shardCount-1
+     */
+    int getShard(long pair) {
+        long hash = ((pair * 0x9E3779B97F4A7C15L) >>> 32);
+        return (int) ((hash * shardCount) >>> 32);
+    }
+
+    /**
+     * @param pair the packed gene id and homologue gene id
+     * @return true if this invocation's shard handles the pair
+     */
+    boolean inShard(long pair) {
+        return shardCount<=1 || getShard(pair)==shardIndex;
+    }
+
+    /**
+     * Return the families, by index in the given list, that each gene is in.
+     *
+     * @param memberLists the sorted member gene ids of each family
+     * @param genes the genes to return memberships for, or null for all genes
+     * @return the increasing family indexes of each gene that is in any of the families
+     */
+    static Map<Integer,int[]> getGeneMemberships(List<int[]> memberLists, Set<Integer> genes) {
+        Map<Integer,int[]> geneFamilies = new HashMap<>();
+        for (int f=0; f<memberLists.size(); f++) {
+            for (int geneId : memberLists.get(f)) {
+                if (genes!=null && !genes.contains(geneId)) {
+                    continue;
+                }
+                int[] memberships = geneFamilies.get(geneId);
+                if (memberships==null) {
+                    memberships = new int[] {f};
+                } else {
+                    memberships = Arrays.copyOf(memberships, memberships.length+1);
+                    memberships[memberships.length-1] = f;
+                }
+                geneFamilies.put(geneId, memberships);
+            }
+        }
+        return geneFamilies;
+    }
+
+    /**
+     * Delete existing Homologues whose gene and homologue are both members of one of the given families, but not
+     * both members of one of the families to keep. The Homologues are deleted by id, without loading them, a range of
+     * DELETE_ID_RANGE ids at a time: each range's ids are read in full before any of them are deleted, then deleted
+     * batchSize ids per statement.
+     *
+     * Only the Homologues of this shard's gene pairs are deleted. An incremental run passes the old members of the
+     * families that have changed or gone, and keeps the unchanged families.
+     *
+     * @param deleteMemberships the families of each gene whose Homologues are deleted, or null to delete them all
+     * @param keepMemberships the families of each gene whose Homologues are kept, or null
+     * @param label the log label
+     * @return the number of this shard's Homologues found, and the number of them deleted
+     * @throws ObjectStoreException if the objectstore throws an exception
+     */
+    long[] deleteHomologues(Map<Integer,int[]> deleteMemberships, Map<Integer,int[]> keepMemberships, String label) throws ObjectStoreException {
+        // the id range of the Homologues
+        Query qRange = new Query();
+        QueryClass qcRange = new QueryClass(Homologue.class);
+        qRange.addFrom(qcRange);
+        QueryField qfRangeId = new QueryField(qcRange, "id");
+        qRange.addToSelect(new QueryFunction(qfRangeId, QueryFunction.MIN));
+        qRange.addToSelect(new QueryFunction(qfRangeId, QueryFunction.MAX));
+        Iterator<?> rangeIter = os.execute(qRange).iterator();
+        ResultsRow<?> range = rangeIter.hasNext() ? (ResultsRow<?>) rangeIter.next() : null;
+        if (range==null || range.get(0)==null) {
+            LOG.info(label+"Deleted 0 Homologues.");
+            return new long[] {0, 0};
+        }
+        long minId = ((Number) range.get(0)).longValue();
+        long maxId = ((Number) range.get(1)).longValue();
+
+        long found = 0;
+        int count = 0;
+        int[] ids = new int[1024];
+        for (long from=minId; from<=maxId; from+=DELETE_ID_RANGE) {
+            Query qHomo = new Query();
+            ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+            QueryClass qcHomo = new QueryClass(Homologue.class);
+            qHomo.addFrom(qcHomo);
+            QueryField qfId = new QueryField(qcHomo, "id");
+            qHomo.addToSelect(qfId);
+            qHomo.addToSelect(new QueryForeignKey(qcHomo, "gene"));
+            qHomo.addToSelect(new QueryForeignKey(qcHomo, "homologue"));
+            cs.addConstraint(new SimpleConstraint(qfId, ConstraintOp.GREATER_THAN_EQUALS, new QueryValue(Integer.valueOf((int) from))));
+            cs.addConstraint(new SimpleConstraint(qfId, ConstraintOp.LESS_THAN_EQUALS, new QueryValue(Integer.valueOf((int) Math.min(from+DELETE_ID_RANGE-1, maxId)))));
+            qHomo.setConstraint(cs);
+            // read the whole range before deleting any of it, since committing a delete invalidates the Results batches
+            int n = 0;
+            Iterator<?> homoIter = os.execute(qHomo, 5000, true, false, false).iterator();
+            while (homoIter.hasNext()) {
+                ResultsRow<?> rr = (ResultsRow<?>) homoIter.next();
+                Integer geneId = (Integer) rr.get(1);
+                Integer homologueId = (Integer) rr.get(2);
+                if (!inShard(pack(geneId==null ? 0 : geneId.intValue(), homologueId==null ? 0 : homologueId.intValue()))) {
+                    continue;
+                }
+                found++;
+                if (deleteMemberships!=null && !shareFamily(deleteMemberships.get(geneId), deleteMemberships.get(homologueId))) {
+                    continue;
+                }
+                if (keepMemberships!=null && shareFamily(keepMemberships.get(geneId), keepMemberships.get(homologueId))) {
+                    continue;
+                }
+                if (n==ids.length) {
+                    ids = Arrays.copyOf(ids, n*2);
+                }
+                ids[n++] = ((Integer) rr.get(0)).intValue();
+            }
+            // delete batchSize ids per statement and transaction
+            for (int i=0; i<n; i+=batchSize) {
+                List<Integer> batch = new ArrayList<>();
+                for (int j=i; j<Math.min(i+batchSize, n); j++) {
+                    batch.add(ids[j]);
+                }
+                QueryClass qcDelete = new QueryClass(Homologue.class);
+                osw.beginTransaction();
+                osw.delete(qcDelete, new BagConstraint(new QueryField(qcDelete, "id"), ConstraintOp.IN, batch));
+                osw.commitTransaction();
+                count += batch.size();
+            }
+        }
+        LOG.info(label+"Deleted "+count+" of "+found+" Homologues.");
+        return new long[] {found, count};
+    }
+
+    // true if the last run paired large families the way this one does
+    private boolean hasLargeFamilySettings(HomologueFamilyMemberships memberships) {
+        if (memberships.getMaxFamilySize()!=maxFamilySize) {
+            return false;
+        }
+        if (maxFamilySize==0) {
+            return true;
+        }
+        if (!memberships.getLargeFamilyStrategy().equals(largeFamilyStrategy.name())) {
+            return false;
+        }
+        return largeFamilyStrategy!=LargeFamilyStrategy.CAP || memberships.getMaxPairsPerGene()==maxPairsPerGene;
+    }
+
+    // true if any of the genes is in the set
+    private static boolean hasAny(int[] geneIds, Set<Integer> genes) {
+        for (int geneId : geneIds) {
+            if (genes.contains(geneId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // true if two genes' family memberships, in increasing order, have a family in common
+    private static boolean shareFamily(int[] a, int[] b) {
+        if (a==null || b==null) {
+            return false;
+        }
+        int i = 0;
+        int j = 0;
+        while (i<a.length && j<b.length) {
+            if (a[i]==b[j]) {
+                return true;
+            } else if (a[i]<b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Generate the ordered gene pairs of every family on a fork-join pool, and add them to the sorter on this thread
+     * as they arrive.
+     *
+     * @param families the families
+     * @param sorter the sorter
+     * @throws IOException if the sorter can't spill a run
+     * @throws ObjectStoreException if a generator fails
+     */
+    void generatePairs(List<Family> families, HomologuePairSorter sorter) throws IOException, ObjectStoreException {
+        // the largest family is timed, since it bounds how long the pool takes
+        int largest = -1;
+        for (int i=0; i<families.size(); i++) {
+            if (largest<0 || families.get(i).size()>families.get(largest).size()) {
+                largest = i;
+            }
+        }
+        final Family largestFamily = (largest<0) ? null : families.get(largest);
+        final BlockingQueue<long[]> queue = new ArrayBlockingQueue<>(PAIR_QUEUE_CAPACITY);
+        final AtomicInteger largeFamilyCount = new AtomicInteger();
+        final AtomicLong largeFamilyPairs = new AtomicLong();
+        final AtomicLong largeFamilyAllPairs = new AtomicLong();
+        ForkJoinPool pool = (threads>0) ? new ForkJoinPool(threads) : new ForkJoinPool();
+        ForkJoinTask<Void> generator = pool.submit(() -> {
+            try {
+                List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+                for (final Family family : families) {
+                    tasks.add(ForkJoinTask.adapt(() -> {
+                        long start = System.currentTimeMillis();
+                        long pairCount = emitPairs(family, queue);
+                        if (isLarge(family)) {
+                            largeFamilyCount.incrementAndGet();
+                            largeFamilyPairs.addAndGet(pairCount);
+                            largeFamilyAllPairs.addAndGet(family.size()*(long)(family.size()-1));
+                        }
+                        if (family==largestFamily) {
+                            LOG.info("Generated "+pairCount+" pairs for the largest family ("
+                                     +family.size()+" genes) in "+(System.currentTimeMillis()-start)+" ms.");
+                        }
+                        return null;
+                    }));
+                }
+                ForkJoinTask.invokeAll(tasks);
+            } finally {
+                // an empty chunk says the generators are done, even if one failed
+                queue.put(new long[0]);
+            }
+            return null;
+        });
+        try {
+            long[] pairs;
+            while ((pairs = queue.take()).length>0) {
+                for (long pair : pairs) {
+                    sorter.add(pair);
+                }
+            }
+            generator.get();
+            if (maxFamilySize>0) {
+                LOG.info(largeFamilyCount.get()+" families with more than "+maxFamilySize+" genes were paired with the "
+                         +largeFamilyStrategy+" strategy: "+largeFamilyPairs.get()+" of their "+largeFamilyAllPairs.get()+" pairs were stored.");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ObjectStoreException(ex);
+        } catch (ExecutionException ex) {
+            throw new ObjectStoreException(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Put the ordered pairs of distinct genes of a family that belong to this shard on the queue, a chunk at a time:
+     * every pair, unless the family is larger than maxFamilySize, in which case the largeFamilyStrategy decides which
+     * pairs.
+     *
+     * @param family the family
+     * @param queue the queue read by the writer
+     * @return the number of pairs put on the queue
+     * @throws InterruptedException if interrupted while waiting for the writer
+     */
+    long emitPairs(Family family, BlockingQueue<long[]> queue) throws InterruptedException {
+        int[] geneIds = family.geneIds;
+        int[] organismIds = family.organismIds;
+        int size = family.size();
+        PairEmitter emitter = new PairEmitter(queue);
+        boolean large = isLarge(family);
+        if (large && largeFamilyStrategy==LargeFamilyStrategy.CAP && maxPairsPerGene/2<(size-1)/2) {
+            // pair each gene with the genes on either side of it in gene id order, wrapping around, which is symmetric
+            int half = maxPairsPerGene/2;
+            for (int i=0; i<size; i++) {
+                for (int d=1; d<=half; d++) {
+                    emitter.emit(pack(geneIds[i], geneIds[(i+d)%size]));
+                    emitter.emit(pack(geneIds[i], geneIds[(i-d+size)%size]));
+                }
+            }
+        } else {
+            boolean crossOrganismOnly = large && largeFamilyStrategy==LargeFamilyStrategy.CROSS_ORGANISM;
+            for (int i=0; i<size; i++) {
+                for (int j=0; j<size; j++) {
+                    if (i==j || (crossOrganismOnly && organismIds[i]==organismIds[j])) {
+                        continue;
+                    }
+                    emitter.emit(pack(geneIds[i], geneIds[j]));
+                }
+            }
+        }
+        emitter.flush();
+        return emitter.count;
+    }
+
+    /**
+     * @param family a family
+     * @return true if the family is larger than maxFamilySize, so is paired with the largeFamilyStrategy
+     */
+    boolean isLarge(Family family) {
+        return maxFamilySize>0 && family.size()>maxFamilySize;
+    }
+
+    /**
+     * Pack a gene id and its homologue's gene id into a single long.
+     *
+     * @param geneId the object id of the gene
+     * @param homologueId the object id of the homologous gene
+     * @return the packed pair
+     */
+    static long pack(int geneId, int homologueId) {
+        return ((long) geneId << 32) | (homologueId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Stores Homologues for packed gene pairs, committing every batchSize.
+     */
+    class HomologueWriter {
+
+        private final ObjectStoreWriter writer;
+        private final String label;
+        private final long startTime = System.currentTimeMillis();
+        private long count = 0;
+        private int uncommitted = 0;
+
+        HomologueWriter(ObjectStoreWriter writer, String label) {
+            this.writer = writer;
+            this.label = label;
+        }
+
+        /**
+         * Store a Homologue for the given pair, resolving the genes by id.
+         * @param pair the packed gene id and homologue gene id
+         * @throws ObjectStoreException if the store or commit fails
+         */
+        void store(long pair) throws ObjectStoreException {
+            if (uncommitted==0) {
+                writer.beginTransaction();
+            }
+            Homologue homologue = (Homologue) DynamicUtil.createObject(Collections.singleton(Homologue.class));
+            homologue.setFieldValue("gene", new ProxyReference(writer.getObjectStore(), (int) (pair >>> 32), Gene.class));
+            homologue.setFieldValue("homologue", new ProxyReference(writer.getObjectStore(), (int) pair, Gene.class));
+            writer.store(homologue);
+            count++;
+            uncommitted++;
+            if (uncommitted>=batchSize) {
+                writer.commitTransaction();
+                uncommitted = 0;
+            }
+        }
+
+        /**
+         * Commit any remaining Homologues and log the throughput.
+         * @throws ObjectStoreException if the commit fails
+         */
+        void close() throws ObjectStoreException {
+            if (uncommitted>0) {
+                writer.commitTransaction();
+                uncommitted = 0;
+            }
+            double seconds = Math.max(1L, System.currentTimeMillis()-startTime)/1000.0;
+            LOG.info(label+"Stored "+count+" Homologues in "+String.format("%.1f", seconds)+" s ("
+                     +String.format("%.0f", count/seconds)+" pairs/s).");
+        }
+    }
+
+    /**
+     * Collects the packed pairs of this shard into chunks and puts them on the writer's queue.
+     */
+    class PairEmitter {
+
+        private final BlockingQueue<long[]> queue;
+        private long[] pairs = new long[PAIR_CHUNK_SIZE];
+        private int n = 0;
+        long count = 0;
+
+        PairEmitter(BlockingQueue<long[]> queue) {
+            this.queue = queue;
+        }
+
+        void emit(long pair) throws InterruptedException {
+            if (!inShard(pair)) {
+                return;
+            }
+            pairs[n++] = pair;
+            count++;
+            if (n==PAIR_CHUNK_SIZE) {
+                queue.put(pairs);
+                pairs = new long[PAIR_CHUNK_SIZE];
+                n = 0;
+            }
+        }
+
+        void flush() throws InterruptedException {
+            if (n>0) {
+                queue.put(Arrays.copyOf(pairs, n));
+                n = 0;
+            }
+        }
+    }
+
+    /**
+     * The member genes of a GeneFamily, in gene id order, with the organism of each gene.
+     */
+    static class Family {
+
+        final int id;
+        final int[] geneIds;
+        final int[] organismIds;
+
+        Family(int id, int[] geneIds, int[] organismIds) {
+            this.id = id;
+            this.geneIds = geneIds;
+            this.organismIds = organismIds;
+        }
+
+        int size() {
+            return geneIds.length;
+        }
+    }
 }
@@ -0,0 +1,219 @@
+package org.intermine.bio.postprocess;
+
+/*
+ * Copyright (C) 2019 NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The GeneFamily memberships persisted between runs of CreateHomologuesProcess: for each family id, a 64-bit hash
+ * of its sorted member gene ids, and the ids themselves. A family whose hash hasn't changed already has its
+ * Homologues; the members of a family that has changed or gone identify the Homologues to delete.
+ *
+ * The ids are object ids, which a rebuilt mine may reuse, so the number of Homologues the run left is recorded too:
+ * if the mine doesn't have that many, the memberships don't describe it and the Homologues are all recreated. The
+ * large family settings the run paired with are recorded as well, since its Homologues only match them.
+ *
+ * The file is binary: a header, the Homologue count, the large family settings, the family count, then per family its
+ * id, the hash, the member count and the member gene ids.
+ */
+public class HomologueFamilyMemberships {
+
+    // file header, "HMFM" plus a format version
+    private static final int MAGIC = 0x484D464D;
+    private static final int VERSION = 1;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Map<Integer, Long> hashes = new LinkedHashMap<Integer, Long>();
+    private final Map<Integer, int[]> members = new LinkedHashMap<Integer, int[]>();
+    private long homologueCount = -1;
+    // the large family settings the Homologues were paired with
+    private int maxFamilySize = 0;
+    private String largeFamilyStrategy = "";
+    private int maxPairsPerGene = 0;
+
+    /**
+     * @return the number of Homologues left by the run that recorded the memberships, or -1 if not yet set
+     */
+    public long getHomologueCount() {
+        return homologueCount;
+    }
+
+    /**
+     * @param homologueCount the number of Homologues left by this run
+     */
+    public void setHomologueCount(long homologueCount) {
+        this.homologueCount = homologueCount;
+    }
+
+    /**
+     * @return the family size above which the large family strategy was used, 0 for no limit
+     */
+    public int getMaxFamilySize() {
+        return maxFamilySize;
+    }
+
+    /**
+     * @return the name of the large family strategy
+     */
+    public String getLargeFamilyStrategy() {
+        return largeFamilyStrategy;
+    }
+
+    /**
+     * @return the number of homologues per gene in a large family with the cap strategy
+     */
+    public int getMaxPairsPerGene() {
+        return maxPairsPerGene;
+    }
+
+    /**
+     * Record the large family settings this run pairs with.
+     * @param maxFamilySize the family size above which the large family strategy is used, 0 for no limit
+     * @param largeFamilyStrategy the name of the large family strategy
+     * @param maxPairsPerGene the number of homologues per gene in a large family with the cap strategy
+     */
+    public void setLargeFamilySettings(int maxFamilySize, String largeFamilyStrategy, int maxPairsPerGene) {
+        this.maxFamilySize = maxFamilySize;
+        this.largeFamilyStrategy = largeFamilyStrategy;
+        this.maxPairsPerGene = maxPairsPerGene;
+    }
+
+    /**
+     * @param familyId the GeneFamily id
+     * @return the membership hash, or null if the family isn't recorded
+     */
+    public Long getHash(int familyId) {
+        return hashes.get(familyId);
+    }
+
+    /**
+     * @param familyId the GeneFamily id
+     * @return the sorted member gene ids, or null if the family isn't recorded
+     */
+    public int[] getMembers(int familyId) {
+        return members.get(familyId);
+    }
+
+    /**
+     * @return the recorded family ids
+     */
+    public Set<Integer> getFamilyIds() {
+        return hashes.keySet();
+    }
+
+    /**
+     * Record the members of a family.
+     * @param familyId the GeneFamily id
+     * @param geneIds the sorted member gene ids
+     */
+    public void put(int familyId, int[] geneIds) {
+        hashes.put(familyId, hash(geneIds));
+        members.put(familyId, geneIds);
+    }
+
+    /**
+     * @return the number of families recorded
+     */
+    public int size() {
+        return hashes.size();
+    }
+
+    /**
+     * 64-bit FNV-1a hash of sorted member gene ids.
+     * @param geneIds the sorted member gene ids
+     * @return the hash
+     */
+    public static long hash(int[] geneIds) {
+        long h = FNV_OFFSET_BASIS;
+        for (int geneId : geneIds) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                h = (h ^ ((geneId >>> shift) & 0xff)) * FNV_PRIME;
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Read memberships from a file.
+     * @param file the membership file
+     * @return the memberships
+     * @throws IOException if the file can't be read or isn't a membership file
+     */
+    public static HomologueFamilyMemberships read(File file) throws IOException {
+        HomologueFamilyMemberships memberships = new HomologueFamilyMemberships();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a gene family membership file.");
+            }
+            if (in.readInt() != VERSION) {
+                throw new IOException(file + " is not a version " + VERSION + " gene family membership file.");
+            }
+            memberships.homologueCount = in.readLong();
+            memberships.maxFamilySize = in.readInt();
+            memberships.largeFamilyStrategy = in.readUTF();
+            memberships.maxPairsPerGene = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int familyId = in.readInt();
+                long hash = in.readLong();
+                int[] geneIds = new int[in.readInt()];
+                for (int j = 0; j < geneIds.length; j++) {
+                    geneIds[j] = in.readInt();
+                }
+                memberships.hashes.put(familyId, hash);
+                memberships.members.put(familyId, geneIds);
+            }
+        }
+        return memberships;
+    }
+
+    /**
+     * Write the memberships to a file, via a temporary file so an interrupted run leaves the old file intact.
+     * @param file the membership file
+     * @throws IOException if the file can't be written
+     */
+    public void write(File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(homologueCount);
+            out.writeInt(maxFamilySize);
+            out.writeUTF(largeFamilyStrategy);
+            out.writeInt(maxPairsPerGene);
+            out.writeInt(hashes.size());
+            for (Map.Entry<Integer, Long> entry : hashes.entrySet()) {
+                int[] geneIds = members.get(entry.getKey());
+                out.writeInt(entry.getKey());
+                out.writeLong(entry.getValue());
+                out.writeInt(geneIds.length);
+                for (int geneId : geneIds) {
+                    out.writeInt(geneId);
+                }
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,207 @@
+package org.intermine.bio.postprocess;
+
+/*
+ * Copyright (C) 2019 NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.intermine.objectstore.ObjectStoreException;
+
+/**
+ * External sort of packed gene pairs with a fixed memory budget, so that a pair generated by several overlapping
+ * gene families is stored once. Pairs are collected in a buffer; a full buffer is sorted and spilled to a temporary
+ * file as a run of distinct longs, and the runs are then merged, dropping duplicates.
+ */
+public class HomologuePairSorter {
+
+    // read/write buffer per run file
+    private static final int IO_BUFFER_SIZE = 64*1024;
+
+    private final File tempDir;
+    private final long[] buffer;
+    private int n = 0;
+    private final List<File> runFiles = new ArrayList<>();
+    private final List<Long> runLengths = new ArrayList<>();
+    private long count = 0;
+
+    /**
+     * Something that takes the distinct pairs in order.
+     */
+    interface PairConsumer {
+        void accept(long pair) throws ObjectStoreException;
+    }
+
+    /**
+     * @param bufferSize the number of pairs held in memory, 8 bytes each
+     * @param tempDir the directory for the run files, or null for the default temporary directory
+     */
+    public HomologuePairSorter(int bufferSize, File tempDir) {
+        this.buffer = new long[bufferSize];
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Add a pair, spilling the buffer to a run file if it is full.
+     * @param pair the packed pair
+     * @throws IOException if a run file can't be written
+     */
+    public void add(long pair) throws IOException {
+        if (n==buffer.length) {
+            spill();
+        }
+        buffer[n++] = pair;
+        count++;
+    }
+
+    /**
+     * @return the number of pairs added, including duplicates
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of runs spilled to disk
+     */
+    public int getRunCount() {
+        return runFiles.size();
+    }
+
+    /**
+     * Hand each distinct pair, in increasing order, to the consumer. The run files are deleted afterwards.
+     * @param consumer the consumer
+     * @return the number of distinct pairs
+     * @throws IOException if a run file can't be read
+     * @throws ObjectStoreException if the consumer fails
+     */
+    public long drain(PairConsumer consumer) throws IOException, ObjectStoreException {
+        try {
+            if (runFiles.isEmpty()) {
+                // it all fitted in memory
+                int distinct = sortDistinct();
+                for (int i=0; i<distinct; i++) {
+                    consumer.accept(buffer[i]);
+                }
+                n = 0;
+                return distinct;
+            }
+            spill();
+            return merge(consumer);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Delete any run files.
+     */
+    public void close() {
+        for (File runFile : runFiles) {
+            runFile.delete();
+        }
+        runFiles.clear();
+        runLengths.clear();
+    }
+
+    // sort the buffer and remove duplicates, returning the number of distinct pairs at the start of the buffer
+    private int sortDistinct() {
+        Arrays.sort(buffer, 0, n);
+        int distinct = 0;
+        for (int i=0; i<n; i++) {
+            if (distinct==0 || buffer[i]!=buffer[distinct-1]) {
+                buffer[distinct++] = buffer[i];
+            }
+        }
+        return distinct;
+    }
+
+    // write the buffer to a new run file as sorted, distinct pairs
+    private void spill() throws IOException {
+        int distinct = sortDistinct();
+        File runFile = File.createTempFile("homologue-pairs-", ".run", tempDir);
+        runFiles.add(runFile);
+        runLengths.add((long) distinct);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), IO_BUFFER_SIZE))) {
+            for (int i=0; i<distinct; i++) {
+                out.writeLong(buffer[i]);
+            }
+        }
+        n = 0;
+    }
+
+    // k-way merge of the run files, skipping duplicates
+    private long merge(PairConsumer consumer) throws IOException, ObjectStoreException {
+        PriorityQueue<Run> queue = new PriorityQueue<>(runFiles.size(), (a, b) -> Long.compare(a.current, b.current));
+        List<Run> runs = new ArrayList<>();
+        try {
+            for (int r=0; r<runFiles.size(); r++) {
+                Run run = new Run(runFiles.get(r), runLengths.get(r));
+                runs.add(run);
+                if (run.next()) {
+                    queue.add(run);
+                }
+            }
+            long distinct = 0;
+            long last = 0;
+            while (!queue.isEmpty()) {
+                Run run = queue.poll();
+                if (distinct==0 || run.current!=last) {
+                    last = run.current;
+                    consumer.accept(last);
+                    distinct++;
+                }
+                if (run.next()) {
+                    queue.add(run);
+                }
+            }
+            return distinct;
+        } finally {
+            for (Run run : runs) {
+                run.in.close();
+            }
+        }
+    }
+
+    /**
+     * A run file being merged, positioned at its current pair.
+     */
+    static class Run {
+
+        final DataInputStream in;
+        long remaining;
+        long current;
+
+        Run(File file, long length) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+            this.remaining = length;
+        }
+
+        // move to the next pair, returning false at the end of the run
+        boolean next() throws IOException {
+            if (remaining==0) {
+                return false;
+            }
+            current = in.readLong();
+            remaining--;
+            return true;
+        }
+    }
+}
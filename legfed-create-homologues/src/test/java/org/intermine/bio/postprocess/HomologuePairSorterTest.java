@@ -0,0 +1,126 @@
+package org.intermine.bio.postprocess;
+
+/*
+ * Copyright (C) 2019 NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.intermine.objectstore.ObjectStoreException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for HomologuePairSorter.
+ */
+public class HomologuePairSorterTest {
+
+    private File tempDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("homologue-pair-sorter-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    // drain the sorter into an array
+    private long[] drain(HomologuePairSorter sorter) throws IOException, ObjectStoreException {
+        final long[][] drained = {new long[16]};
+        final int[] n = {0};
+        long distinct = sorter.drain(pair -> {
+            if (n[0] == drained[0].length) {
+                drained[0] = Arrays.copyOf(drained[0], n[0] * 2);
+            }
+            drained[0][n[0]++] = pair;
+        });
+        assertEquals(n[0], distinct);
+        return Arrays.copyOf(drained[0], n[0]);
+    }
+
+    @Test
+    public void testInMemory() throws Exception {
+        HomologuePairSorter sorter = new HomologuePairSorter(100, tempDir);
+        for (long pair : new long[] {5, 3, 5, 1, 3, 9}) {
+            sorter.add(pair);
+        }
+        assertEquals(6, sorter.getCount());
+        assertArrayEquals(new long[] {1, 3, 5, 9}, drain(sorter));
+        assertEquals(0, sorter.getRunCount());
+    }
+
+    @Test
+    public void testSpillAndMergeDeduplicates() throws Exception {
+        // a buffer of 7 pairs spills many runs, with duplicates both within and across runs
+        HomologuePairSorter sorter = new HomologuePairSorter(7, tempDir);
+        TreeSet<Long> expected = new TreeSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            long pair = CreateHomologuesProcess.pack(random.nextInt(40), random.nextInt(40));
+            sorter.add(pair);
+            expected.add(pair);
+        }
+        assertEquals(1000, sorter.getCount());
+        long[] drained = drain(sorter);
+        assertEquals(expected.size(), drained.length);
+        int i = 0;
+        for (Long pair : expected) {
+            assertEquals(pair.longValue(), drained[i++]);
+        }
+        // the run files are deleted once drained
+        assertEquals(0, tempDir.listFiles().length);
+    }
+
+    @Test
+    public void testDuplicateAcrossRunBoundary() throws Exception {
+        HomologuePairSorter sorter = new HomologuePairSorter(2, tempDir);
+        for (long pair : new long[] {4, 2, 2, 4, 3, 4, 2}) {
+            sorter.add(pair);
+        }
+        assertArrayEquals(new long[] {2, 3, 4}, drain(sorter));
+    }
+
+    @Test
+    public void testNegativePairs() throws Exception {
+        // gene ids are packed into the high bits, so a pair can be negative
+        HomologuePairSorter sorter = new HomologuePairSorter(3, tempDir);
+        long[] pairs = {CreateHomologuesProcess.pack(-5, 1), CreateHomologuesProcess.pack(7, 2), 0L,
+                        CreateHomologuesProcess.pack(-5, 1), CreateHomologuesProcess.pack(7, -2)};
+        for (long pair : pairs) {
+            sorter.add(pair);
+        }
+        long[] expected = new TreeSet<Long>(Arrays.asList(pairs[0], pairs[1], pairs[2], pairs[4]))
+            .stream().mapToLong(Long::longValue).toArray();
+        assertArrayEquals(expected, drain(sorter));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        HomologuePairSorter sorter = new HomologuePairSorter(4, tempDir);
+        assertArrayEquals(new long[0], drain(sorter));
+    }
+}
@@ -0,0 +1,149 @@
+package org.intermine.bio.postprocess;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.intermine.bio.postprocess.CreateIntronFeaturesProcess.pack;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.intermine.bio.postprocess.CreateIntronFeaturesProcess.ChromosomeIntrons;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the exon sweep of CreateIntronFeaturesProcess.createIntronFeatures with the per-base BitSet it replaced,
+ * which set a bit for every exon base of a transcript and walked the clear runs between them. Both add their introns
+ * to a ChromosomeIntrons. transcriptCount transcripts of 1 to 15 exons are generated, with log-normal lengths around
+ * medianLength, so the long tail that makes the BitSet slow is there; run with a few medians to compare genomes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class IntronSweepBenchmark {
+
+    // the longest transcript generated, about the longest annotated plant genes
+    private static final int MAX_LENGTH = 2000000;
+
+    @Param({"2000", "20000", "200000"})
+    public int medianLength;
+
+    @Param({"50000"})
+    public int transcriptCount;
+
+    // packed (start, end) exons of each transcript, in no particular order, and the transcript's start and length
+    private long[][] exons;
+    private int[] tranStarts;
+    private int[] tranLengths;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        exons = new long[transcriptCount][];
+        tranStarts = new int[transcriptCount];
+        tranLengths = new int[transcriptCount];
+        for (int t = 0; t < transcriptCount; t++) {
+            int exonCount = 1 + random.nextInt(15);
+            int length = (int) Math.min(MAX_LENGTH, Math.max(4 * exonCount, medianLength * Math.exp(random.nextGaussian())));
+            int tranStart = 1 + random.nextInt(50000000);
+            // alternate exons and introns, in random proportions, from the first base of the transcript to its last
+            double[] weights = new double[2 * exonCount - 1];
+            double total = 0;
+            for (int s = 0; s < weights.length; s++) {
+                weights[s] = 0.1 + random.nextDouble();
+                total += weights[s];
+            }
+            long[] transcriptExons = new long[exonCount];
+            int start = tranStart;
+            double covered = 0;
+            for (int s = 0; s < weights.length; s++) {
+                covered += weights[s];
+                int end = (s == weights.length - 1) ? tranStart + length - 1
+                    : Math.max(start, tranStart + (int) (length * covered / total) - 1);
+                if (s % 2 == 0) {
+                    transcriptExons[s / 2] = pack(start, end);
+                }
+                start = end + 1;
+            }
+            // the query returns exons in no particular order
+            for (int i = exonCount - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                long swap = transcriptExons[i];
+                transcriptExons[i] = transcriptExons[j];
+                transcriptExons[j] = swap;
+            }
+            exons[t] = transcriptExons;
+            tranStarts[t] = tranStart;
+            tranLengths[t] = length;
+        }
+    }
+
+    @Benchmark
+    public ChromosomeIntrons bitSet() {
+        ChromosomeIntrons introns = new ChromosomeIntrons();
+        for (int t = 0; t < transcriptCount; t++) {
+            bitSetIntrons(exons[t], tranStarts[t], tranLengths[t], introns, t);
+        }
+        return introns;
+    }
+
+    @Benchmark
+    public ChromosomeIntrons sweep() {
+        ChromosomeIntrons introns = new ChromosomeIntrons();
+        for (int t = 0; t < transcriptCount; t++) {
+            // copied as createIntrons does, since the sweep sorts in place
+            long[] transcriptExons = Arrays.copyOf(exons[t], exons[t].length);
+            CreateIntronFeaturesProcess.createIntronFeatures(transcriptExons, transcriptExons.length, introns, t);
+        }
+        return introns;
+    }
+
+    // the BitSet computation the sweep replaced
+    private static int bitSetIntrons(long[] exons, int tranStart, int tranLength, ChromosomeIntrons introns,
+                                     int transcriptIndex) {
+        if (exons.length < 2) {
+            return 0;
+        }
+        BitSet bs = new BitSet(tranLength);
+        for (long exon : exons) {
+            bs.set((int) (exon >>> 32) - tranStart, (int) exon - tranStart + 1);
+        }
+        int prevEndPos = 0;
+        int intronCount = 0;
+        while (prevEndPos != -1) {
+            intronCount++;
+            int nextIntronStart = bs.nextClearBit(prevEndPos + 1);
+            int nextSetBit = bs.nextSetBit(nextIntronStart);
+            int intronEnd = (nextSetBit == -1) ? tranLength : nextSetBit - 1;
+            prevEndPos = (nextSetBit == -1 || intronCount == exons.length - 1) ? -1 : intronEnd;
+            if (nextIntronStart > intronEnd) {
+                intronCount--;
+            } else {
+                introns.add(pack(nextIntronStart + tranStart, intronEnd + tranStart), transcriptIndex);
+            }
+        }
+        return intronCount;
+    }
+}
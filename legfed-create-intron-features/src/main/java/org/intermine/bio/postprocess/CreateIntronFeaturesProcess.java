@@ -10,18 +10,24 @@ package org.intermine.bio.postprocess;
  *
  */
 
-import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.PrimitiveIterator;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.intermine.bio.util.Constants;
 import org.intermine.bio.util.PostProcessUtil;
 import org.intermine.postprocess.PostProcessor;
-import org.intermine.bio.util.Constants;
 import org.intermine.metadata.MetaDataException;
 import org.intermine.metadata.Model;
 import org.intermine.model.bio.Chromosome;
@@ -31,12 +37,14 @@ import org.intermine.model.bio.Gene;
 import org.intermine.model.bio.Intron;
 import org.intermine.model.bio.Location;
 import org.intermine.model.bio.Organism;
+import org.intermine.model.bio.Sequence;
 import org.intermine.model.bio.SequenceFeature;
 import org.intermine.objectstore.ObjectStore;
 import org.intermine.objectstore.ObjectStoreException;
 import org.intermine.objectstore.ObjectStoreWriter;
 import org.intermine.objectstore.intermine.ObjectStoreInterMineImpl;
 import org.intermine.objectstore.query.BagConstraint;
+import org.intermine.objectstore.query.ClobAccess;
 import org.intermine.metadata.ConstraintOp;
 import org.intermine.objectstore.query.ConstraintSet;
 import org.intermine.objectstore.query.ContainsConstraint;
@@ -44,9 +52,12 @@ import org.intermine.objectstore.query.Query;
 import org.intermine.objectstore.query.QueryClass;
 import org.intermine.objectstore.query.QueryCollectionReference;
 import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryForeignKey;
 import org.intermine.objectstore.query.QueryObjectReference;
+import org.intermine.objectstore.query.QueryValue;
 import org.intermine.objectstore.query.Results;
 import org.intermine.objectstore.query.ResultsRow;
+import org.intermine.objectstore.query.SimpleConstraint;
 import org.intermine.util.DynamicUtil;
 
 import org.apache.commons.lang.StringUtils;
@@ -54,6 +65,14 @@ import org.apache.log4j.Logger;
 
 /**
  * Methods for creating feature for introns.
+ *
+ * Transcripts are read a chromosome at a time, one query per chromosome, and each chromosome's introns are computed on
+ * a fork-join pool while the next chromosome is read, then stored and committed. Each query is read in full
+ * before anything is committed, since a commit invalidates Results that are still being iterated; with several organism
+ * workers on the one ObjectStore, queries are read under a shared read lock and introns are stored and committed under
+ * its write lock, so no worker commits while another is reading. If the model has Intron splice site fields, each
+ * chromosome's sequence is read once, in coordinate order, for the dinucleotides at the ends of its introns.
+ *
  * @author Wenyan Ji
  */
 public class CreateIntronFeaturesProcess extends PostProcessor {
@@ -61,14 +80,21 @@ public class CreateIntronFeaturesProcess extends PostProcessor {
     private static final Logger LOG = Logger.getLogger(CreateIntronFeaturesProcess.class);
 
     private ObjectStore os;
-    private DataSet dataSet;
     private DataSource dataSource;
     private Set<Integer> taxonIds = new HashSet<Integer>();
     private Model model;
-
-    protected Map<String, SequenceFeature> intronMap = new HashMap<String, SequenceFeature>();
-    protected Map<SequenceFeature, Set<SequenceFeature>> intronTranscripts =
-        new HashMap<SequenceFeature, Set<SequenceFeature>>();
+    // fork-join parallelism for the per-chromosome intron computation, 0 for the number of processors
+    private int threads = 0;
+    // number of organisms processed concurrently, 0 to process them all with one query and writer
+    private int organismThreads = 0;
+    // characters of chromosome sequence read at a time for the splice sites
+    private int sequenceChunkSize = 1024 * 1024;
+    // set if the model has Chromosome.sequence and the Intron splice site fields
+    private boolean spliceSites = false;
+
+    // the splice site dinucleotide pairs given their own spliceSiteType; anything else is non-canonical
+    private static final Set<String> SPLICE_SITE_TYPES =
+        new HashSet<String>(Arrays.asList("GT-AG", "GC-AG", "AT-AC"));
 
     /**
      * Create a new CreateIntronFeaturesProcess object that will operate on the given ObjectStoreWriter.
@@ -102,6 +128,41 @@ public class CreateIntronFeaturesProcess extends PostProcessor {
         }
     }
 
+    /**
+     * Set the number of threads computing introns, shared by the organism workers; if not set, one per processor.
+     * Each worker computes one chromosome's introns while it reads the next, so only as many threads as there are
+     * organism workers, or one without them, are busy at once.
+     * @param threads the fork-join pool parallelism
+     */
+    public void setThreads(String threads) {
+        if (!StringUtils.isEmpty(threads)) {
+            this.threads = Integer.parseInt(threads.trim());
+        }
+    }
+
+    /**
+     * Set the number of organisms to process concurrently. If greater than 0, each organism (from setOrganisms, or
+     * every organism in the mine) is processed by its own worker with its own queries and ObjectStoreWriter, and the
+     * introns all share one DataSet. Workers read and compute at the same time, but each commit waits until no other
+     * worker is reading.
+     * @param organismThreads the maximum number of organism workers running at once
+     */
+    public void setOrganismThreads(String organismThreads) {
+        if (!StringUtils.isEmpty(organismThreads)) {
+            this.organismThreads = Integer.parseInt(organismThreads.trim());
+        }
+    }
+
+    /**
+     * Set the number of characters of chromosome sequence read at a time when finding splice sites.
+     * @param sequenceChunkSize the chunk size
+     */
+    public void setSequenceChunkSize(String sequenceChunkSize) {
+        if (!StringUtils.isEmpty(sequenceChunkSize)) {
+            this.sequenceChunkSize = Integer.parseInt(sequenceChunkSize.trim());
+        }
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -111,52 +172,199 @@ public class CreateIntronFeaturesProcess extends PostProcessor {
      */
     public void postProcess() throws ObjectStoreException {
 
-        dataSet = (DataSet) DynamicUtil.createObject(Collections.singleton(DataSet.class));
+        try {
+            final String message = "Not performing create introns postprocess ";
+            PostProcessUtil.checkFieldExists(model, "Transcript", "exons", message);
+            PostProcessUtil.checkFieldExists(model, "Intron", "transcripts", message);
+            PostProcessUtil.checkFieldExists(model, "Exon", null, message);
+        } catch (MetaDataException e) {
+            return;
+        }
+        try {
+            final String message = "Not setting Intron splice sites ";
+            PostProcessUtil.checkFieldExists(model, "Chromosome", "sequence", message);
+            PostProcessUtil.checkFieldExists(model, "Intron", "donorSite", message);
+            PostProcessUtil.checkFieldExists(model, "Intron", "acceptorSite", message);
+            PostProcessUtil.checkFieldExists(model, "Intron", "spliceSiteType", message);
+            spliceSites = true;
+        } catch (MetaDataException e) {
+            LOG.warn(e.getMessage() + "; add Intron donorSite, acceptorSite and spliceSiteType attributes to the"
+                     + " mine's model additions to store them.");
+            spliceSites = false;
+        }
+
+        // one DataSet for all the introns, stored before any worker refers to it
+        DataSet dataSet = (DataSet) DynamicUtil.createObject(Collections.singleton(DataSet.class));
         dataSet.setName("InterMine introns");
         dataSet.setDescription("Introns calculated by InterMine post-processor");
         dataSet.setVersion("" + new Date()); // current time and date
         dataSet.setUrl("https://www.intermine.org");
         dataSet.setDataSource(dataSource);
+        osw.store(dataSet);
 
-        // Documented as an example of how to use the query API
+        // the intron computation pool is shared by all the organisms
+        ForkJoinPool pool = (threads > 0) ? new ForkJoinPool(threads) : new ForkJoinPool();
+        // a commit by any writer invalidates Results still being iterated on the ObjectStore, so reads hold the read
+        // lock and commits the write lock; fair, so waiting commits aren't starved by a stream of reads
+        ReadWriteLock lock = new ReentrantReadWriteLock(true);
+        try {
+            if (organismThreads <= 0) {
+                createIntrons(osw, taxonIds, dataSet, pool, lock, "");
+                return;
+            }
+            // one worker per organism, each with its own queries and writer
+            Set<Integer> partitions = taxonIds.isEmpty() ? PartitionWorkers.getTaxonIds(os) : taxonIds;
+            LOG.info("Creating introns for " + partitions.size() + " organisms on up to " + organismThreads + " threads.");
+            PartitionWorkers.run(osw, partitions, organismThreads, "Intron creation failed for taxon ", (partitionWriter, taxonId) -> {
+                long start = System.currentTimeMillis();
+                createIntrons(partitionWriter, Collections.singleton(taxonId), dataSet, pool, lock,
+                              "[taxon " + taxonId + "] ");
+                LOG.info("[taxon " + taxonId + "] Finished in " + (System.currentTimeMillis() - start) / 1000 + " s.");
+                return null;
+            });
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-        // This query finds all transcripts and their chromosome locations and exons
-        // for each transcript with the exon chromosome location.  This is then used
-        // to calculate intron locations.
+    /**
+     * Create the introns of the transcripts of the given organisms.
+     *
+     * @param writer the ObjectStoreWriter to read and write with; only this thread may use it
+     * @param partitionTaxonIds the taxon ids of the organisms; if empty, introns are created for all organisms
+     * @param dataSet the stored DataSet of the introns
+     * @param pool the pool that computes each chromosome's introns
+     * @param lock held for reading while a query is read, and for writing while introns are stored and committed
+     * @param label a prefix for log messages
+     * @throws ObjectStoreException if the objectstore throws an exception
+     */
+    void createIntrons(ObjectStoreWriter writer, Set<Integer> partitionTaxonIds, DataSet dataSet, ForkJoinPool pool,
+                       ReadWriteLock lock, String label) throws ObjectStoreException {
+        ObjectStore os = writer.getObjectStore();
+
+        // the chromosomes are read in full before anything is stored, and each chromosome's transcripts are read in
+        // full before the previous ones are stored and committed, since a commit invalidates any Results still
+        // being iterated
+        List<Integer> chrIds = new ArrayList<Integer>();
+        lock.readLock().lock();
+        try {
+            // precompute the organisms' transcripts, which each chromosome's query selects from
+            ((ObjectStoreInterMineImpl) os).precompute(getTranscriptQuery(partitionTaxonIds, null, false),
+                                                       Constants.PRECOMPUTE_CATEGORY);
+            Iterator<?> chrIter = os.execute(getTranscriptQuery(partitionTaxonIds, null, true)).iterator();
+            while (chrIter.hasNext()) {
+                ResultsRow<?> rr = (ResultsRow<?>) chrIter.next();
+                chrIds.add((Integer) rr.get(0));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // each chromosome's transcripts are read in turn, and their introns computed on the pool while the next
+        // chromosome is read, then stored here, since the ObjectStoreWriter is single-threaded; so at most two
+        // chromosomes' transcripts are held at once
+        ChromosomeTranscripts previous = null;
+        int tranCount = 0, exonCount = 0, stored = 0;
+
+        for (Integer chrId : chrIds) {
+            ChromosomeTranscripts chromosome = readTranscripts(os, partitionTaxonIds, chrId, lock);
+            tranCount += chromosome.transcripts.size();
+            exonCount += chromosome.exonCount;
+            chromosome.submit(pool);
+            if (previous != null) {
+                stored += storeIntrons(writer, dataSet, previous, lock, label);
+            }
+            previous = chromosome;
+        }
+        if (previous != null) {
+            stored += storeIntrons(writer, dataSet, previous, lock, label);
+        }
+
+        LOG.info(label + "Read " + tranCount + " transcripts with " + exonCount + " exons on " + chrIds.size()
+                 + " chromosomes, stored " + stored + " introns.");
+    }
 
+    /**
+     * Read all the transcripts located on a chromosome, with their exons. The Results are drained under the read
+     * lock before returning, so the caller is free to commit.
+     *
+     * @param os the ObjectStore to read from
+     * @param partitionTaxonIds the taxon ids to restrict to, or empty for all
+     * @param chrId the id of the chromosome
+     * @param lock held for reading while the Results are iterated
+     * @return the chromosome's transcripts and exons
+     */
+    ChromosomeTranscripts readTranscripts(ObjectStore os, Set<Integer> partitionTaxonIds, Integer chrId,
+                                          ReadWriteLock lock) {
+        lock.readLock().lock();
         try {
-            final String message = "Not performing create introns postprocess ";
-            PostProcessUtil.checkFieldExists(model, "Transcript", "exons", message);
-            PostProcessUtil.checkFieldExists(model, "Intron", "transcripts", message);
-            PostProcessUtil.checkFieldExists(model, "Exon", null, message);
-        } catch (MetaDataException e) {
-            return;
+            return readTranscripts(os, partitionTaxonIds, chrId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private ChromosomeTranscripts readTranscripts(ObjectStore os, Set<Integer> partitionTaxonIds, Integer chrId) {
+        // Set up the results, the query isn't actually executed until we begin
+        // iterating through the results
+        Results results = os.execute(getTranscriptQuery(partitionTaxonIds, chrId, false), 500, true, true, true);
+
+        // When we start interating the query will be executed
+        Iterator<?> resultsIter = results.iterator();
+
+        ChromosomeTranscripts chromosome = new ChromosomeTranscripts(chrId);
+        SequenceFeature lastTran = null;
+        while (resultsIter.hasNext()) {
+            // Results is a list of ResultsRows, each ResultsRow contains the objects/fields
+            // that were added to the select list of the query.  The order of columns is
+            // as they were added to the select list.
+            ResultsRow<?> rr = (ResultsRow<?>) resultsIter.next();
+            SequenceFeature thisTran = (SequenceFeature) rr.get(0);
+            if (lastTran == null || !thisTran.getId().equals(lastTran.getId())) {
+                chromosome.addTranscript(thisTran, (Location) rr.get(1), (Gene) rr.get(3));
+                lastTran = thisTran;
+            }
+            Location exonLoc = (Location) rr.get(2);
+            chromosome.addExon(exonLoc.getStart().intValue(), exonLoc.getEnd().intValue());
         }
+        return chromosome;
+    }
 
+    /**
+     * Documented as an example of how to use the query API.
+     *
+     * This query finds all transcripts and their chromosome locations and exons
+     * for each transcript with the exon chromosome location.  This is then used
+     * to calculate intron locations.
+     *
+     * @param partitionTaxonIds the taxon ids to restrict to, or empty for all
+     * @param chrId the id of the chromosome to restrict to, or null for all chromosomes
+     * @param chromosomeIds true to select just the distinct chromosome ids
+     * @return the query
+     */
+    Query getTranscriptQuery(Set<Integer> partitionTaxonIds, Integer chrId, boolean chromosomeIds) {
         // Construct a new query and a set to hold constraints that will be ANDed together
         Query q = new Query();
         ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
 
-        // Add Transcript to the from and select lists
+        // Add Transcript to the from list
         QueryClass qcTran = new QueryClass(model.getClassDescriptorByName("Transcript").getType());
         q.addFrom(qcTran);
-        q.addToSelect(qcTran);
 
         // Include the referenced chromosomeLocation of the Transcript
         QueryClass qcTranLoc = new QueryClass(Location.class);
         q.addFrom(qcTranLoc);
-        q.addToSelect(qcTranLoc);
         QueryObjectReference qorTranLoc = new QueryObjectReference(qcTran, "chromosomeLocation");
         cs.addConstraint(new ContainsConstraint(qorTranLoc, ConstraintOp.CONTAINS, qcTranLoc));
 
         // restict to taxonIds if specified
-        if (!taxonIds.isEmpty()) {
+        if (!partitionTaxonIds.isEmpty()) {
             QueryClass qcOrg = new QueryClass(Organism.class);
             q.addFrom(qcOrg);
             QueryObjectReference orgRef = new QueryObjectReference(qcTran, "organism");
             cs.addConstraint(new ContainsConstraint(orgRef, ConstraintOp.CONTAINS, qcOrg));
             QueryField qfTaxonId = new QueryField(qcOrg, "taxonId");
-            cs.addConstraint(new BagConstraint(qfTaxonId, ConstraintOp.IN, taxonIds));
+            cs.addConstraint(new BagConstraint(qfTaxonId, ConstraintOp.IN, partitionTaxonIds));
         }
 
         // Include the Exon class from the Transcript.exons collection
@@ -168,211 +376,385 @@ public class CreateIntronFeaturesProcess extends PostProcessor {
         // Include the referenced chromosomeLocation of each Exon
         QueryClass qcExonLoc = new QueryClass(Location.class);
         q.addFrom(qcExonLoc);
-        q.addToSelect(qcExonLoc);
         QueryObjectReference qorExonLoc = new QueryObjectReference(qcExon, "chromosomeLocation");
         cs.addConstraint(new ContainsConstraint(qorExonLoc, ConstraintOp.CONTAINS, qcExonLoc));
 
         // Include the referenced Gene of the Transcript
         QueryClass qcGene = new QueryClass(Gene.class);
         q.addFrom(qcGene);
-        q.addToSelect(qcGene);
         QueryObjectReference qorGene = new QueryObjectReference(qcTran, "gene");
         cs.addConstraint(new ContainsConstraint(qorGene, ConstraintOp.CONTAINS, qcGene));
 
+        // The id of the chromosome the Transcript is located on
+        QueryForeignKey qfkChr = new QueryForeignKey(qcTranLoc, "locatedOn");
+
+        if (chromosomeIds) {
+            // just the chromosomes that have transcripts with exons
+            q.setDistinct(true);
+            q.addToSelect(qfkChr);
+            q.addToOrderBy(qfkChr);
+        } else {
+            // the transcripts, their locations, exon locations, genes and chromosomes, in transcript order
+            q.addToSelect(qcTran);
+            q.addToSelect(qcTranLoc);
+            q.addToSelect(qcExonLoc);
+            q.addToSelect(qcGene);
+            q.addToSelect(qfkChr);
+            q.addToOrderBy(qcTran);
+        }
+        if (chrId != null) {
+            cs.addConstraint(new SimpleConstraint(qfkChr, ConstraintOp.EQUALS, new QueryValue(chrId)));
+        }
+
         // Set the constraint of the query
         q.setConstraint(cs);
+        return q;
+    }
 
-        // Force an order by transcripts to make processing easier
-        q.addToOrderBy(qcTran);
-
-        // Precompute this query first, this will create a precomputed table holding
-        // all the results.  The will make all batches after the first faster to fetch
-        ((ObjectStoreInterMineImpl) os).precompute(q, Constants.PRECOMPUTE_CATEGORY);
-
-        // Set up the results, the query isn't actually executed until we begin
-        // iterating through the results
-        Results results = os.execute(q, 500, true, true, true);
-
-        // When we start interating the query will be executed
-        Iterator<?> resultsIter = results.iterator();
-
-        Set<Location> locationSet = new HashSet<Location>();
-        Set<Gene> geneSet = new HashSet<Gene>();
-        SequenceFeature lastTran = null;
-        Location lastTranLoc = null;
-        Gene lastGene = null;
-        int tranCount = 0, exonCount = 0, intronCount = 0;
-
-        osw.beginTransaction();
-        while (resultsIter.hasNext()) {
-            // Results is a list of ResultsRows, each ResultsRow contains the objects/fields
-            // that were added to the select list of the query.  The order of columns is
-            // as they were added to the select list.
-            ResultsRow<?> rr = (ResultsRow<?>) resultsIter.next();
-            SequenceFeature thisTran = (SequenceFeature) rr.get(0);
-
-            if (lastTran == null) {
-                lastTran = thisTran;
-                lastTranLoc = (Location) rr.get(1);
-                lastGene = (Gene) rr.get(3);
+    /**
+     * Read the two bases at each end of each intron from the chromosome sequence. The ends are sorted by position
+     * so the sequence is read once, in coordinate order, a chunk at a time; chunks with no intron ends aren't read.
+     *
+     * @param chr the chromosome
+     * @param introns the chromosome's introns
+     * @return the first two bases of intron i at 2i and its last two at 2i+1, in upper case on the forward strand,
+     * or null if the chromosome has no sequence; an end that runs off the sequence is null
+     */
+    String[] readIntronEnds(Chromosome chr, ChromosomeIntrons introns) {
+        Sequence sequence = chr.getSequence();
+        if (sequence == null || sequence.getResidues() == null) {
+            return null;
+        }
+        ClobAccess residues = sequence.getResidues();
+        int length = residues.length();
+        // 0-based offset of the end's first base, with the end's index in the low bits
+        long[] ends = new long[2 * introns.size()];
+        for (int i = 0; i < introns.size(); i++) {
+            int start = (int) (introns.coordinates[i] >>> 32);
+            int end = (int) introns.coordinates[i];
+            ends[2 * i] = ((long) (start - 1) << 32) | (2 * i);
+            ends[2 * i + 1] = ((long) (end - 2) << 32) | (2 * i + 1);
+        }
+        Arrays.sort(ends);
+        String[] bases = new String[ends.length];
+        String chunk = null;
+        int chunkStart = 0;
+        for (long end : ends) {
+            int offset = (int) (end >> 32);
+            if (offset < 0 || offset + 2 > length) {
+                continue;
             }
-
-            if (!thisTran.getId().equals(lastTran.getId())) {
-                tranCount++;
-                intronCount += createIntronFeatures(locationSet, lastTran, lastTranLoc, lastGene);
-                exonCount += locationSet.size();
-                if ((tranCount % 1000) == 0) {
-                    LOG.info("Created " + intronCount + " Introns for " + tranCount
-                             + " Transcripts with " + exonCount + " Exons.");
-                }
-                locationSet = new HashSet<Location>();
-                lastTran = thisTran;
-                lastTranLoc = (Location) rr.get(1);
-                lastGene = (Gene) rr.get(3);
+            if (chunk == null || offset + 2 > chunkStart + chunk.length()) {
+                chunkStart = offset;
+                chunk = residues.subSequence(chunkStart, Math.min(length, chunkStart + sequenceChunkSize)).toString();
             }
-            locationSet.add((Location) rr.get(2));
-            geneSet.add((Gene) rr.get(3));
+            bases[(int) end] = chunk.substring(offset - chunkStart, offset - chunkStart + 2).toUpperCase();
         }
+        return bases;
+    }
 
-        if (lastTran != null) {
-            intronCount += createIntronFeatures(locationSet, lastTran, lastTranLoc, lastGene);
-            tranCount++;
-            exonCount += locationSet.size();
+    /**
+     * @param bases upper case DNA bases
+     * @return the reverse complement; anything but A, C, G and T is kept as is
+     */
+    static String reverseComplement(String bases) {
+        StringBuilder sb = new StringBuilder(bases.length());
+        for (int i = bases.length() - 1; i >= 0; i--) {
+            char c = bases.charAt(i);
+            switch (c) {
+            case 'A': sb.append('T'); break;
+            case 'C': sb.append('G'); break;
+            case 'G': sb.append('C'); break;
+            case 'T': sb.append('A'); break;
+            default: sb.append(c);
+            }
         }
+        return sb.toString();
+    }
 
-        LOG.info("Read " + tranCount + " transcripts with " + exonCount + " exons.");
+    /**
+     * Wait for the introns of a chromosome to be computed, then create and store them with their transcripts and
+     * commit them, in one transaction under the write lock. The chromosome, its organism and sequence are read under
+     * the read lock first.
+     * @param writer the ObjectStoreWriter to store with
+     * @param dataSet the stored DataSet of the introns
+     * @param chromosome the chromosome's transcripts
+     * @param lock held for reading while the chromosome is read, and for writing while the introns are stored
+     * @param label a prefix for log messages
+     * @return the number of introns stored
+     * @throws ObjectStoreException if there is an ObjectStore problem or the computation failed
+     */
+    protected int storeIntrons(ObjectStoreWriter writer, DataSet dataSet, ChromosomeTranscripts chromosome,
+                               ReadWriteLock lock, String label) throws ObjectStoreException {
+        ChromosomeIntrons introns;
+        try {
+            introns = chromosome.introns.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ObjectStoreException(e);
+        } catch (ExecutionException e) {
+            throw new ObjectStoreException("Intron computation failed for chromosome " + chromosome.chrId, e.getCause());
+        }
+        if (introns.size() == 0) {
+            return 0;
+        }
+        Chromosome chr;
+        Organism organism;
+        String[] intronEnds;
+        lock.readLock().lock();
+        try {
+            // all loaded lazily
+            chr = chromosome.transcripts.get(0).getChromosome();
+            organism = chr.getOrganism();
+            intronEnds = spliceSites ? readIntronEnds(chr, introns) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            writer.beginTransaction();
+            storeIntrons(writer, dataSet, chromosome, introns, chr, organism, intronEnds);
+            writer.commitTransaction();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOG.info(label + "Stored " + introns.size() + " introns on " + chr.getPrimaryIdentifier() + " for "
+                 + chromosome.transcripts.size() + " transcripts.");
+        return introns.size();
+    }
 
-        //osw.beginTransaction();
-        int stored = 0;
-        for (Iterator<String> i = intronMap.keySet().iterator(); i.hasNext();) {
-            String identifier = i.next();
-            SequenceFeature intron = intronMap.get(identifier);
-            Set<SequenceFeature> transcripts = intronTranscripts.get(intron);
-            if (transcripts != null) {
-                intron.setFieldValue("transcripts", transcripts);
+    // create and store the Intron and Location objects of a chromosome's introns
+    private void storeIntrons(ObjectStoreWriter writer, DataSet dataSet, ChromosomeTranscripts chromosome,
+                              ChromosomeIntrons introns, Chromosome chr, Organism organism, String[] intronEnds)
+        throws ObjectStoreException {
+        Class<?> intronCls = model.getClassDescriptorByName("Intron").getType();
+        for (int i = 0; i < introns.size(); i++) {
+            int start = (int) (introns.coordinates[i] >>> 32);
+            int end = (int) introns.coordinates[i];
+            int[] transcriptIndexes = introns.getTranscripts(i);
+            // the first transcript with the intron gives its strand, gene and location reference
+            int first = transcriptIndexes[0];
+            SequenceFeature transcript = chromosome.transcripts.get(first);
+
+            Intron intron = (Intron)
+                DynamicUtil.createObject(Collections.singleton(intronCls));
+            Location location =
+                (Location) DynamicUtil.createObject(Collections.singleton(Location.class));
+
+            intron.setChromosome(chr);
+            intron.setOrganism(organism);
+            intron.addDataSets(dataSet);
+            intron.setPrimaryIdentifier("intron_chr" + chr.getPrimaryIdentifier()
+                                        + "_" + Integer.toString(start) + ".." + Integer.toString(end));
+            intron.setGenes(Collections.singleton(chromosome.genes.get(first)));
+
+            location.setStart(new Integer(start));
+            location.setEnd(new Integer(end));
+            location.setStrand(chromosome.tranLocs.get(first).getStrand());
+            location.setFeature(intron);
+            location.setLocatedOn(transcript);
+            location.addDataSets(dataSet);
+
+            intron.setChromosomeLocation(location);
+            intron.setLength(new Integer(end - start + 1));
+
+            Set<SequenceFeature> transcripts = new HashSet<SequenceFeature>();
+            for (int t : transcriptIndexes) {
+                transcripts.add(chromosome.transcripts.get(t));
             }
-            osw.store(intron);
-            stored++;
-            if (stored % 1000 == 0) {
-                LOG.info("Stored " + stored + " introns.");
+            intron.setFieldValue("transcripts", transcripts);
+
+            if (intronEnds != null && intronEnds[2 * i] != null && intronEnds[2 * i + 1] != null) {
+                // the donor is at the 5' end of the intron on its own strand
+                String donor, acceptor;
+                if ("-1".equals(location.getStrand())) {
+                    donor = reverseComplement(intronEnds[2 * i + 1]);
+                    acceptor = reverseComplement(intronEnds[2 * i]);
+                } else {
+                    donor = intronEnds[2 * i];
+                    acceptor = intronEnds[2 * i + 1];
+                }
+                String spliceSiteType = donor + "-" + acceptor;
+                intron.setFieldValue("donorSite", donor);
+                intron.setFieldValue("acceptorSite", acceptor);
+                intron.setFieldValue("spliceSiteType",
+                                     SPLICE_SITE_TYPES.contains(spliceSiteType) ? spliceSiteType : "non-canonical");
             }
-        }
 
-        if (intronMap.size() > 1) {
-            osw.store(dataSet);
+            writer.store(location);
+            writer.store(intron);
         }
-        osw.commitTransaction();
     }
 
-
     /**
-     * Return a set of Intron objects that don't overlap the Locations
-     * in the locationSet argument.  The caller must call ObjectStoreWriter.store() on the
-     * Intron, its chromosomeLocation and the synonym in the synonyms collection.
-     * @param locationSet a set of Locations for the exons on a particular transcript
-     * @param transcript Transcript that the Locations refer to
-     * @param tranLoc The Location of the Transcript
-     * @param gene gene for the transcript
-     * @return a set of Intron objects
-     * @throws ObjectStoreException if there is an ObjectStore problem
+     * Return the introns of a transcript: the gaps between its exons. The exons are sorted by start and merged where
+     * they overlap or abut, and each gap between merged exons is an intron, so overlapping and unsorted exons are
+     * handled without any per-base work.
+     * @param exons the exon (start, end) pairs packed into longs, which are sorted in place
+     * @param n the number of exons
+     * @param introns the chromosome's introns, to which the transcript's introns are added
+     * @param transcriptIndex the index of the transcript on its chromosome
+     * @return the number of introns in the transcript
      */
-    protected int createIntronFeatures(Set<Location> locationSet, SequenceFeature transcript,
-            Location tranLoc, Gene gene)
-        throws ObjectStoreException {
-        if (locationSet.size() == 1 || tranLoc == null || transcript == null
-                || transcript.getLength() == null) {
+    static int createIntronFeatures(long[] exons, int n, ChromosomeIntrons introns, int transcriptIndex) {
+        if (n < 2) {
             return 0;
         }
+        // packed longs sort by start then end
+        Arrays.sort(exons, 0, n);
+        int intronCount = 0;
+        int blockEnd = (int) exons[0];
+        for (int i = 1; i < n; i++) {
+            int exonStart = (int) (exons[i] >>> 32);
+            int exonEnd = (int) exons[i];
+            if (exonStart > blockEnd + 1) {
+                introns.add(pack(blockEnd + 1, exonStart - 1), transcriptIndex);
+                intronCount++;
+            }
+            blockEnd = Math.max(blockEnd, exonEnd);
+        }
+        return intronCount;
+    }
 
-        final BitSet bs = new BitSet(transcript.getLength().intValue());
-        Chromosome chr = transcript.getChromosome();
-
-        int tranStart = tranLoc.getStart().intValue();
+    /**
+     * Pack a (start, end) pair into a long, which sorts by start then end for positive coordinates.
+     * @param start the start
+     * @param end the end
+     * @return the packed pair
+     */
+    static long pack(int start, int end) {
+        return ((long) start << 32) | (end & 0xFFFFFFFFL);
+    }
 
-        for (Location location : locationSet) {
-            bs.set(location.getStart().intValue() - tranStart,
-                   (location.getEnd().intValue() - tranStart) + 1);
+    /**
+     * The transcripts of one chromosome with their exon coordinates, as read from the query, and the future of the
+     * chromosome's introns once submitted.
+     */
+    static class ChromosomeTranscripts {
+
+        final Integer chrId;
+        final List<SequenceFeature> transcripts = new ArrayList<SequenceFeature>();
+        final List<Location> tranLocs = new ArrayList<Location>();
+        final List<Gene> genes = new ArrayList<Gene>();
+        // exons of transcript t are exons[exonOffsets[t]..exonOffsets[t+1])
+        private long[] exons = new long[64];
+        private int exonCount = 0;
+        private int[] exonOffsets = new int[16];
+        ForkJoinTask<ChromosomeIntrons> introns;
+
+        ChromosomeTranscripts(Integer chrId) {
+            this.chrId = chrId;
         }
 
-        int prevEndPos = 0;
-        int intronCount = 0;
-        while (prevEndPos != -1) {
-            intronCount++;
-            int nextIntronStart = bs.nextClearBit(prevEndPos + 1);
-            int intronEnd;
-            int nextSetBit = bs.nextSetBit(nextIntronStart);
-
-            if (nextSetBit == -1) {
-                intronEnd = transcript.getLength().intValue();
-            } else {
-                intronEnd = nextSetBit - 1;
+        void addTranscript(SequenceFeature transcript, Location tranLoc, Gene gene) {
+            transcripts.add(transcript);
+            tranLocs.add(tranLoc);
+            genes.add(gene);
+            if (transcripts.size() >= exonOffsets.length) {
+                exonOffsets = Arrays.copyOf(exonOffsets, exonOffsets.length * 2);
             }
+            exonOffsets[transcripts.size() - 1] = exonCount;
+        }
 
-            if (nextSetBit == -1
-                || intronCount == (locationSet.size() - 1)) {
-                prevEndPos = -1;
-            } else {
-                prevEndPos = intronEnd;
+        void addExon(int start, int end) {
+            if (exonCount == exons.length) {
+                exons = Arrays.copyOf(exons, exonCount * 2);
             }
+            exons[exonCount++] = pack(start, end);
+        }
 
-            int newLocStart = nextIntronStart + tranStart;
-            int newLocEnd = intronEnd + tranStart;
-
-            String identifier = "intron_chr" + chr.getPrimaryIdentifier()
-                + "_" + Integer.toString(newLocStart) + ".." + Integer.toString(newLocEnd);
-
-            if (newLocStart>newLocEnd) {
-
-                // ignore introns that result from errant overlapping exons
-                intronCount--;
-                LOG.info(identifier+" has negative length, skipping.");
-
-            } else {
-
-                if (intronMap.get(identifier) == null) {
-                    Class<?> intronCls = model.getClassDescriptorByName("Intron").getType();
-                    Intron intron = (Intron)
-                        DynamicUtil.createObject(Collections.singleton(intronCls));
-                    Location location =
-                        (Location) DynamicUtil.createObject(Collections.singleton(Location.class));
-                    
-                    intron.setChromosome(chr);
-                    intron.setOrganism(chr.getOrganism());
-                    intron.addDataSets(dataSet);
-                    intron.setPrimaryIdentifier(identifier);
-                    intron.setGenes(Collections.singleton(gene));
-                    
-                    location.setStart(new Integer(newLocStart));
-                    location.setEnd(new Integer(newLocEnd));
-                    location.setStrand(tranLoc.getStrand());
-                    location.setFeature(intron);
-                    location.setLocatedOn(transcript);
-                    location.addDataSets(dataSet);
-                    
-                    intron.setChromosomeLocation(location);
-                    osw.store(location);
-                    
-                    int length = location.getEnd().intValue() - location.getStart().intValue() + 1;
-                    intron.setLength(new Integer(length));
-                    addToIntronTranscripts(intron, transcript);
-                    intronMap.put(identifier, intron);
-                } else {
-                    SequenceFeature intron = intronMap.get(identifier);
-                    addToIntronTranscripts(intron, transcript);
-                    intronMap.put(identifier, intron);
+        /**
+         * Start computing the introns on the pool.
+         * @param pool the pool
+         */
+        void submit(ForkJoinPool pool) {
+            exonOffsets[transcripts.size()] = exonCount;
+            introns = pool.submit(() -> {
+                ChromosomeIntrons chromosomeIntrons = new ChromosomeIntrons();
+                for (int t = 0; t < transcripts.size(); t++) {
+                    // a transcript with no location isn't given introns
+                    if (tranLocs.get(t) == null) {
+                        continue;
+                    }
+                    long[] transcriptExons = Arrays.copyOfRange(exons, exonOffsets[t], exonOffsets[t + 1]);
+                    createIntronFeatures(transcriptExons, transcriptExons.length, chromosomeIntrons, t);
                 }
+                chromosomeIntrons.sort();
+                return chromosomeIntrons;
+            });
+        }
+    }
+
+    /**
+     * The distinct introns of one chromosome, deduplicated on their packed (start, end) in a LongHashSet, with the
+     * transcripts each is in. Once sorted, the introns are indexed in coordinate order.
+     */
+    static class ChromosomeIntrons {
+
+        private final LongHashSet distinct = new LongHashSet();
+        // packed (start, end) of each intron in coordinate order, once sorted
+        long[] coordinates;
+        // the packed (start, end) and transcript index of each transcript's intron, in the order added
+        private long[] membershipCoordinates = new long[64];
+        private int[] membershipTranscripts = new int[64];
+        private int membershipCount = 0;
+        // transcripts of intron i are transcriptIndexes[transcriptOffsets[i]..transcriptOffsets[i+1]), once sorted
+        private int[] transcriptOffsets;
+        private int[] transcriptIndexes;
+
+        /**
+         * Add a transcript's intron.
+         * @param coordinate the packed (start, end)
+         * @param transcriptIndex the transcript index
+         */
+        void add(long coordinate, int transcriptIndex) {
+            distinct.add(coordinate);
+            if (membershipCount == membershipCoordinates.length) {
+                membershipCoordinates = Arrays.copyOf(membershipCoordinates, membershipCount * 2);
+                membershipTranscripts = Arrays.copyOf(membershipTranscripts, membershipCount * 2);
+            }
+            membershipCoordinates[membershipCount] = coordinate;
+            membershipTranscripts[membershipCount++] = transcriptIndex;
+        }
+
+        int size() {
+            return distinct.size();
+        }
 
+        /**
+         * Index the introns in coordinate order, so they are stored, and their ends read, in order, and group the
+         * transcripts by intron.
+         */
+        void sort() {
+            coordinates = new long[distinct.size()];
+            int n = 0;
+            for (PrimitiveIterator.OfLong iter = distinct.iterator(); iter.hasNext(); ) {
+                coordinates[n++] = iter.nextLong();
+            }
+            Arrays.sort(coordinates);
+            int[] intronIndexes = new int[membershipCount];
+            transcriptOffsets = new int[n + 1];
+            for (int m = 0; m < membershipCount; m++) {
+                intronIndexes[m] = Arrays.binarySearch(coordinates, membershipCoordinates[m]);
+                transcriptOffsets[intronIndexes[m] + 1]++;
+            }
+            for (int i = 0; i < n; i++) {
+                transcriptOffsets[i + 1] += transcriptOffsets[i];
+            }
+            // memberships were added in transcript order, so each intron's transcripts stay in order
+            transcriptIndexes = new int[membershipCount];
+            int[] next = Arrays.copyOf(transcriptOffsets, n);
+            for (int m = 0; m < membershipCount; m++) {
+                transcriptIndexes[next[intronIndexes[m]]++] = membershipTranscripts[m];
             }
         }
-        return intronCount;
-    }
 
-    private void addToIntronTranscripts(SequenceFeature intron, SequenceFeature transcript) {
-        Set<SequenceFeature> transcripts = intronTranscripts.get(intron);
-        if (transcripts == null) {
-            transcripts = new HashSet<SequenceFeature>();
-            intronTranscripts.put(intron, transcripts);
+        /**
+         * @param index an intron index, once sorted
+         * @return the indexes of the transcripts with the intron, in increasing order
+         */
+        int[] getTranscripts(int index) {
+            return Arrays.copyOfRange(transcriptIndexes, transcriptOffsets[index], transcriptOffsets[index + 1]);
         }
-        transcripts.add(transcript);
     }
 }
@@ -0,0 +1,115 @@
+package org.intermine.bio.postprocess;
+
+/*
+ * Copyright (C) 2002-2017 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.intermine.bio.postprocess.CreateIntronFeaturesProcess.pack;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.intermine.bio.postprocess.CreateIntronFeaturesProcess.ChromosomeIntrons;
+import org.junit.Test;
+
+/**
+ * Tests for the intron sweep of CreateIntronFeaturesProcess and the per-chromosome intron table.
+ */
+public class CreateIntronFeaturesProcessTest {
+
+    // run the sweep over one transcript's exons, given as start, end, start, end...
+    private static int sweep(ChromosomeIntrons introns, int transcriptIndex, int... ends) {
+        long[] exons = new long[ends.length / 2];
+        for (int i = 0; i < exons.length; i++) {
+            exons[i] = pack(ends[2 * i], ends[2 * i + 1]);
+        }
+        return CreateIntronFeaturesProcess.createIntronFeatures(exons, exons.length, introns, transcriptIndex);
+    }
+
+    // the chromosome's introns, sorted, as start, end, start, end...
+    private static int[] coordinates(ChromosomeIntrons introns) {
+        introns.sort();
+        int[] coordinates = new int[2 * introns.size()];
+        for (int i = 0; i < introns.size(); i++) {
+            coordinates[2 * i] = (int) (introns.coordinates[i] >>> 32);
+            coordinates[2 * i + 1] = (int) introns.coordinates[i];
+        }
+        return coordinates;
+    }
+
+    @Test
+    public void testSortedExons() {
+        ChromosomeIntrons introns = new ChromosomeIntrons();
+        assertEquals(2, sweep(introns, 0, 1, 100, 201, 300, 401, 500));
+        assertArrayEquals(new int[] {101, 200, 301, 400}, coordinates(introns));
+    }
+
+    @Test
+    public void testUnsortedExons() {
+        ChromosomeIntrons introns = new ChromosomeIntrons();
+        assertEquals(2, sweep(introns, 0, 401, 500, 1, 100, 201, 300));
+        assertArrayEquals(new int[] {101, 200, 301, 400}, coordinates(introns));
+    }
+
+    @Test
+    public void testOverlappingExons() {
+        ChromosomeIntrons introns = new ChromosomeIntrons();
+        // the second exon overlaps the first, the third lies inside the merged block
+        assertEquals(1, sweep(introns, 0, 1, 150, 100, 250, 120, 130, 401, 500));
+        assertArrayEquals(new int[] {251, 400}, coordinates(introns));
+    }
+
+    @Test
+    public void testAbuttingExons() {
+        ChromosomeIntrons introns = new ChromosomeIntrons();
+        // abutting exons leave no intron, a one-base gap is a one-base intron
+        assertEquals(1, sweep(introns, 0, 1, 100, 101, 200, 202, 300));
+        assertArrayEquals(new int[] {201, 201}, coordinates(introns));
+    }
+
+    @Test
+    public void testSingleExon() {
+        ChromosomeIntrons introns = new ChromosomeIntrons();
+        assertEquals(0, sweep(introns, 0, 1, 100));
+        assertEquals(0, introns.size());
+    }
+
+    @Test
+    public void testSharedIntrons() {
+        ChromosomeIntrons introns = new ChromosomeIntrons();
+        sweep(introns, 0, 501, 600, 301, 400);
+        sweep(introns, 1, 1, 100, 301, 400, 501, 600);
+        sweep(introns, 2, 1, 100, 201, 400);
+        assertArrayEquals(new int[] {101, 200, 101, 300, 401, 500}, coordinates(introns));
+        assertArrayEquals(new int[] {2}, introns.getTranscripts(0));
+        assertArrayEquals(new int[] {1}, introns.getTranscripts(1));
+        assertArrayEquals(new int[] {0, 1}, introns.getTranscripts(2));
+    }
+
+    @Test
+    public void testManyIntrons() {
+        // enough introns to grow the table, added in reverse order
+        int n = 1000;
+        ChromosomeIntrons introns = new ChromosomeIntrons();
+        for (int t = 0; t < 2; t++) {
+            int[] ends = new int[2 * (n + 1)];
+            for (int i = 0; i <= n; i++) {
+                ends[2 * i] = 100 * (n - i) + 1;
+                ends[2 * i + 1] = 100 * (n - i) + 50;
+            }
+            assertEquals(n, sweep(introns, t, ends));
+        }
+        int[] coordinates = coordinates(introns);
+        assertEquals(n, introns.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(100 * i + 51, coordinates[2 * i]);
+            assertEquals(100 * i + 100, coordinates[2 * i + 1]);
+            assertArrayEquals(new int[] {0, 1}, introns.getTranscripts(i));
+        }
+    }
+}
@@ -10,22 +10,34 @@ package org.intermine.bio.postprocess;
  *
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Set;
-import java.util.LinkedHashSet;
-import java.util.Map;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
 
+import org.intermine.bio.util.PostProcessUtil;
 import org.intermine.postprocess.PostProcessor;
 import org.intermine.metadata.ConstraintOp;
+import org.intermine.metadata.MetaDataException;
 import org.intermine.model.bio.Annotatable;
 import org.intermine.model.bio.OntologyAnnotation;
 import org.intermine.model.bio.OntologyTerm;
 import org.intermine.objectstore.ObjectStoreException;
 import org.intermine.objectstore.ObjectStoreWriter;
+import org.intermine.objectstore.proxy.ProxyReference;
+import org.intermine.objectstore.query.BagConstraint;
 import org.intermine.objectstore.query.ConstraintSet;
 import org.intermine.objectstore.query.ContainsConstraint;
 import org.intermine.objectstore.query.OrderDescending;
@@ -33,22 +45,30 @@ import org.intermine.objectstore.query.Query;
 import org.intermine.objectstore.query.QueryClass;
 import org.intermine.objectstore.query.QueryField;
 import org.intermine.objectstore.query.QueryValue;
-import org.intermine.objectstore.query.QueryCollectionReference;
 import org.intermine.objectstore.query.QueryObjectReference;
 import org.intermine.objectstore.query.Results;
 import org.intermine.objectstore.query.ResultsRow;
 import org.intermine.objectstore.query.SimpleConstraint;
 import org.intermine.util.DynamicUtil;
 
-import org.apache.commons.lang3.tuple.Pair;
-import org.apache.commons.lang3.tuple.MutablePair;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
 /**
- * For given ontology annotations, create additional annotations with those ontology terms' parents.
+ * For given ontology annotations, create additional annotations with all of those ontology terms' ancestors.
  * This allows one to only specify the deepest ontology term for, say, a QTL, but be able to query the mine for higher-level terms.
+ * The term graph is loaded once, so every missing ancestor annotation is created in a single pass.
+ *
+ * The ontologies are chosen by identifier prefix (default TO), and each is processed as its own partition,
+ * optionally concurrently.
  *
- * NOTE: hard-coded limit to TO terms for now
+ * If the model has OntologyTerm.annotationCount, it is set to the number of distinct subjects annotated with the term
+ * or any of its descendants, so term pages and enrichment can read it instead of counting annotations. The core bio
+ * model doesn't have it; a mine adds it to OntologyTerm in its model additions:
+ * <pre>
+ *   &lt;attribute name="annotationCount" type="java.lang.Integer"/&gt;
+ * </pre>
+ * Without it the counts aren't stored, and a warning is logged.
  *
  * @author Sam Hokin
  */
@@ -56,6 +76,24 @@ public class CreateOntologyParentAnnotationsProcess extends PostProcessor {
 
     private static final Logger LOG = Logger.getLogger(CreateOntologyParentAnnotationsProcess.class);
 
+    // number of term ids per BagConstraint query
+    private static final int ID_QUERY_SIZE = 1000;
+
+    // ontology identifier prefixes to process, each as its own partition
+    private List<String> prefixes = new ArrayList<>(Collections.singletonList("TO"));
+
+    // number of prefixes processed concurrently
+    private int threads = 1;
+
+    // directory of the term graph snapshots, if any
+    private File snapshotDir;
+
+    // number of ancestor annotations stored per transaction
+    private int commitSize = 10000;
+
+    // checkpoint file of the last subject whose ancestor annotations were committed, suffixed by prefix, if any
+    private File checkpointFile;
+
     /**
      * Construct with an ObjectStoreWriter, read and write from the same ObjectStore
      * @param osw object store writer
@@ -64,6 +102,67 @@ public class CreateOntologyParentAnnotationsProcess extends PostProcessor {
         super(osw);
     }
 
+    /**
+     * Set a comma separated list of the ontology identifier prefixes whose annotations get ancestor annotations,
+     * default TO.
+     * @param prefixes a comma separated list of prefixes, e.g. GO,PO,TO
+     */
+    public void setPrefixes(String prefixes) {
+        if (!StringUtils.isEmpty(prefixes)) {
+            this.prefixes.clear();
+            for (String prefix : prefixes.split(",")) {
+                this.prefixes.add(StringUtils.removeEnd(prefix.trim(), ":"));
+            }
+        }
+    }
+
+    /**
+     * Set the number of ontology prefixes to process concurrently, each with its own queries and ObjectStoreWriter.
+     * If not set, or 1, the prefixes are processed one after another. Otherwise every prefix's annotations are read
+     * before any prefix's ancestor annotations are stored.
+     * @param threads the maximum number of prefixes processed at once
+     */
+    public void setThreads(String threads) {
+        if (!StringUtils.isEmpty(threads)) {
+            this.threads = Integer.parseInt(threads.trim());
+        }
+    }
+
+    /**
+     * Set a directory in which to keep a snapshot of each ontology's term graph, which is memory-mapped by later runs
+     * as long as the ontology hasn't been reloaded. If not set, the graph is queried from the ObjectStore every run.
+     * @param snapshotDir the snapshot directory, created if it doesn't exist
+     */
+    public void setSnapshotDir(String snapshotDir) {
+        if (!StringUtils.isEmpty(snapshotDir)) {
+            this.snapshotDir = new File(snapshotDir.trim());
+        }
+    }
+
+    /**
+     * Set the number of ancestor annotations to store per transaction, default 10000. A transaction is committed at
+     * the end of the subject that reaches the number, so a subject's annotations are never split across transactions.
+     * Changed annotation counts are stored the same number of terms per transaction.
+     * @param commitSize the number of annotations per transaction
+     */
+    public void setCommitSize(String commitSize) {
+        if (!StringUtils.isEmpty(commitSize)) {
+            this.commitSize = Integer.parseInt(commitSize.trim());
+        }
+    }
+
+    /**
+     * Set a checkpoint file, to which the last subject id whose ancestor annotations have been committed is written
+     * after each commit, in a file per prefix named by appending .PREFIX. A run that finds a checkpoint carries on
+     * after it, and a completed prefix deletes its checkpoint.
+     * @param checkpointFile the checkpoint file path
+     */
+    public void setCheckpointFile(String checkpointFile) {
+        if (!StringUtils.isEmpty(checkpointFile)) {
+            this.checkpointFile = new File(checkpointFile.trim());
+        }
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -72,110 +171,406 @@ public class CreateOntologyParentAnnotationsProcess extends PostProcessor {
      * @throws ObjectStoreException if the objectstore throws an exception
      */
     public void postProcess() throws ObjectStoreException {
+        Map<String,String> report = new LinkedHashMap<>();
+        if (threads<=1 || prefixes.size()==1) {
+            for (String prefix : prefixes) {
+                long start = System.currentTimeMillis();
+                int count = writePrefix(osw, readPrefix(osw, prefix));
+                report.put(prefix, count+" annotations in "+(System.currentTimeMillis()-start)/1000+" s");
+            }
+        } else {
+            // each prefix is an independent partition with its own writer; a commit by one fails any Results another
+            // is still reading with a DataChangedException, so every prefix is read before any prefix writes
+            final Map<String,Long> readTimes = new HashMap<>();
+            final Map<String,PrefixPartition> read = PartitionWorkers.run(osw, prefixes, threads, "Ancestor annotation query failed for ",
+                                                                          (prefixWriter, prefix) -> {
+                long start = System.currentTimeMillis();
+                PrefixPartition partition = readPrefix(prefixWriter, prefix);
+                synchronized (readTimes) {
+                    readTimes.put(prefix, System.currentTimeMillis()-start);
+                }
+                return partition;
+            });
+            report = PartitionWorkers.run(osw, prefixes, threads, "Ancestor annotation failed for ", (prefixWriter, prefix) -> {
+                long start = System.currentTimeMillis();
+                int count = writePrefix(prefixWriter, read.get(prefix));
+                return count+" annotations in "+(readTimes.get(prefix)+System.currentTimeMillis()-start)/1000+" s";
+            });
+        }
+        for (Map.Entry<String,String> entry : report.entrySet()) {
+            LOG.info(entry.getKey()+": stored "+entry.getValue()+".");
+        }
+    }
+
+    /**
+     * Read the term graph and annotations of one ontology and find its missing ancestor annotations. Nothing is
+     * stored, and every Results is read in full.
+     *
+     * @param writer the ObjectStoreWriter to read with; only this thread may use it
+     * @param prefix the ontology identifier prefix, e.g. TO
+     * @return the ontology's partition, ready to write
+     * @throws ObjectStoreException if the objectstore throws an exception
+     */
+    PrefixPartition readPrefix(ObjectStoreWriter writer, String prefix) throws ObjectStoreException {
+        String label = "["+prefix+"] ";
+        String pattern = prefix+":%";
+
+        LOG.info(label+"Loading the OntologyTerm parents graph...");
+        long graphStart = System.currentTimeMillis();
+        OntologyTermGraph graph;
+        if (snapshotDir==null) {
+            graph = OntologyTermGraph.load(writer.getObjectStore(), pattern);
+        } else {
+            try {
+                snapshotDir.mkdirs();
+                graph = OntologyTermGraph.load(writer.getObjectStore(), pattern, new File(snapshotDir, "ontology-graph-"+prefix+".bin"));
+            } catch (IOException ex) {
+                throw new ObjectStoreException("Could not read or write the "+prefix+" term graph snapshot in "+snapshotDir, ex);
+            }
+        }
+        LOG.info(label+"Loaded the term graph in "+(System.currentTimeMillis()-graphStart)+" ms.");
+        LOG.info(label+"Loaded "+graph.size()+" terms with "+graph.edgeCount()+" parent relations.");
+
+        // a previous run that failed part way through has committed the annotations of every subject up to its checkpoint
+        File prefixCheckpointFile = (checkpointFile==null) ? null : new File(checkpointFile.getPath()+"."+prefix);
+        Integer checkpoint = readCheckpoint(prefixCheckpointFile);
+        if (checkpoint!=null) {
+            LOG.info(label+"Resuming after subject "+checkpoint+" from "+prefixCheckpointFile+".");
+        }
+
+        LOG.info(label+"Querying OntologyAnnotation records and associated terms...");
+
+        // store the existing subject/term id pairs so we don't duplicate them
+        LongHashSet subjectTermSet = new LongHashSet();
         
-        LOG.info("Querying OntologyAnnotation records and associated terms and parents...");
+        // store the subject/ancestor term id pairs in a Set for insertion
+        LongHashSet subjectAncestorSet = new LongHashSet();
+
+        // execute the query; the rows are just ids, so no objects are fetched
+        Query qOntologyAnnotation = getAnnotationQuery(pattern, ConstraintOp.GREATER_THAN, checkpoint);
+        Results otResults = writer.getObjectStore().execute(qOntologyAnnotation, 5000, true, false, false);
+        Iterator<?> otIter = otResults.iterator();
+        while (otIter.hasNext()) {
+            ResultsRow<?> rr = (ResultsRow<?>) otIter.next();
+            int subjectId = ((Integer) rr.get(0)).intValue();
+            int termId = ((Integer) rr.get(1)).intValue();
+            // store the existing annotation in a Set
+            subjectTermSet.add(pack(subjectId, termId));
+            // store every ancestor of the term, not just its parents, in a Set
+            int termIndex = graph.indexOf(termId);
+            if (termIndex>=0) {
+                for (int ancestor : graph.getAncestors(termIndex)) {
+                    subjectAncestorSet.add(pack(subjectId, graph.getTermId(ancestor)));
+                }
+            }
+        }
+        LOG.info(label+"Found "+subjectTermSet.size()+" existing annotations ("+subjectTermSet.memoryBytes()+" bytes) and "
+                 +subjectAncestorSet.size()+" ancestor annotations ("+subjectAncestorSet.memoryBytes()+" bytes).");
+
+        // the ancestor annotations that aren't already in the database, in subject id order so that a checkpoint
+        // marks every annotation up to it as stored
+        PrefixPartition partition = new PrefixPartition(label, prefixCheckpointFile);
+        partition.newPairs = new long[subjectAncestorSet.size()];
+        PrimitiveIterator.OfLong pairIter = subjectAncestorSet.iterator();
+        while (pairIter.hasNext()) {
+            long pair = pairIter.nextLong();
+            if (!subjectTermSet.contains(pair)) {
+                partition.newPairs[partition.newCount++] = pair;
+            }
+        }
+        Arrays.sort(partition.newPairs, 0, partition.newCount);
+
+        try {
+            PostProcessUtil.checkFieldExists(writer.getObjectStore().getModel(), "OntologyTerm", "annotationCount",
+                                             "Not storing per-term annotation counts");
+            partition.countedTerms = getAnnotationCounts(writer, label, pattern, graph, subjectTermSet, subjectAncestorSet, checkpoint);
+        } catch (MetaDataException e) {
+            LOG.warn(label+e.getMessage()+"; add <attribute name=\"annotationCount\" type=\"java.lang.Integer\"/> to OntologyTerm"
+                     +" in the mine's model additions to store them.");
+        }
+        return partition;
+    }
 
+    /**
+     * Store the missing ancestor annotations, and the annotation counts if any, of an ontology that has been read.
+     * Nothing is read from the ObjectStore.
+     *
+     * @param writer the ObjectStoreWriter to write with; only this thread may use it
+     * @param partition the ontology's partition
+     * @return the number of annotations stored
+     * @throws ObjectStoreException if the objectstore throws an exception
+     */
+    int writePrefix(ObjectStoreWriter writer, PrefixPartition partition) throws ObjectStoreException {
+        String label = partition.label;
+        long[] newPairs = partition.newPairs;
+        int newCount = partition.newCount;
+        LOG.info(label+"Storing "+newCount+" new ancestor OntologyAnnotation records...");
+
+        // resolve the subject and term by id, and commit every commitSize annotations at the end of a subject
+        int count = 0;
+        int uncommitted = 0;
+        writer.beginTransaction();
+        for (int i=0; i<newCount; i++) {
+            int subjectId = (int) (newPairs[i] >>> 32);
+            int termId = (int) newPairs[i];
+            OntologyAnnotation newAnnotation = (OntologyAnnotation) DynamicUtil.createObject(Collections.singleton(OntologyAnnotation.class));
+            newAnnotation.setFieldValue("subject", new ProxyReference(writer.getObjectStore(), subjectId, Annotatable.class));
+            newAnnotation.setFieldValue("ontologyTerm", new ProxyReference(writer.getObjectStore(), termId, OntologyTerm.class));
+            writer.store(newAnnotation);
+            count++;
+            uncommitted++;
+            if (uncommitted>=commitSize && (i+1==newCount || (int) (newPairs[i+1] >>> 32)!=subjectId)) {
+                writer.commitTransaction();
+                writeCheckpoint(partition.checkpointFile, subjectId);
+                LOG.info(label+"Committed "+count+" of "+newCount+" ancestor OntologyAnnotation records.");
+                uncommitted = 0;
+                writer.beginTransaction();
+            }
+        }
+        writer.commitTransaction();
+        LOG.info(label+"Stored "+count+" ancestor OntologyAnnotation records.");
+
+        if (partition.countedTerms!=null) {
+            storeAnnotationCounts(writer, label, partition.countedTerms);
+        }
+
+        // this prefix is done, so the next run starts from the beginning
+        File prefixCheckpointFile = partition.checkpointFile;
+        if (prefixCheckpointFile!=null && prefixCheckpointFile.exists() && !prefixCheckpointFile.delete()) {
+            throw new ObjectStoreException("Could not delete checkpoint file "+prefixCheckpointFile);
+        }
+        return count;
+    }
+
+    /**
+     * Return a query for the (subject id, term id) pairs of the annotations with terms of one ontology, ordered by
+     * subject id, optionally limited to a range of subject ids.
+     *
+     * @param pattern the MATCHES pattern of the ontology's term identifiers
+     * @param subjectOp the comparison of the subject id with subjectId
+     * @param subjectId the subject id to compare with, or null for all subjects
+     * @return the query
+     */
+    Query getAnnotationQuery(String pattern, ConstraintOp subjectOp, Integer subjectId) {
         Query qOntologyAnnotation = new Query();
         qOntologyAnnotation.setDistinct(true);
         ConstraintSet csOntologyAnnotation = new ConstraintSet(ConstraintOp.AND);
 
-        // 0 OntologyAnnotation
+        // OntologyAnnotation
         QueryClass qcOntologyAnnotation = new QueryClass(OntologyAnnotation.class);
-        qOntologyAnnotation.addToSelect(qcOntologyAnnotation);
         qOntologyAnnotation.addFrom(qcOntologyAnnotation);
 
-        // 1 OntologyAnnotation.ontologyTerm (needed for parents)
+        // 0 OntologyAnnotation.subject.id
+        QueryClass qcSubject = new QueryClass(Annotatable.class);
+        QueryField qfSubjectId = new QueryField(qcSubject, "id");
+        qOntologyAnnotation.addToSelect(qfSubjectId);
+        qOntologyAnnotation.addFrom(qcSubject);
+        QueryObjectReference subject = new QueryObjectReference(qcOntologyAnnotation, "subject");
+        csOntologyAnnotation.addConstraint(new ContainsConstraint(subject, ConstraintOp.CONTAINS, qcSubject));
+        qOntologyAnnotation.addToOrderBy(qfSubjectId);
+
+        // 1 OntologyAnnotation.ontologyTerm.id
         QueryClass qcOntologyTerm = new QueryClass(OntologyTerm.class);
-        qOntologyAnnotation.addToSelect(qcOntologyTerm);
+        qOntologyAnnotation.addToSelect(new QueryField(qcOntologyTerm, "id"));
         qOntologyAnnotation.addFrom(qcOntologyTerm);
         QueryObjectReference ontologyTerm = new QueryObjectReference(qcOntologyAnnotation, "ontologyTerm");
         csOntologyAnnotation.addConstraint(new ContainsConstraint(ontologyTerm, ConstraintOp.CONTAINS, qcOntologyTerm));
 
-        // HACK
-        // term identifier constraint: limit to TO: terms
-        csOntologyAnnotation.addConstraint(new SimpleConstraint(new QueryField(qcOntologyTerm,"identifier"), ConstraintOp.MATCHES, new QueryValue("TO:%")));
+        // term identifier constraint: limit to this prefix's terms
+        csOntologyAnnotation.addConstraint(new SimpleConstraint(new QueryField(qcOntologyTerm,"identifier"), ConstraintOp.MATCHES, new QueryValue(pattern)));
 
-        // 2 OntologyAnnotation.ontologyTerm.parents
-        QueryClass qcParents = new QueryClass(OntologyTerm.class);
-        qOntologyAnnotation.addToSelect(qcParents);
-        qOntologyAnnotation.addFrom(qcParents);
-        QueryCollectionReference parents = new QueryCollectionReference(qcOntologyTerm, "parents");
-        csOntologyAnnotation.addConstraint(new ContainsConstraint(parents, ConstraintOp.CONTAINS, qcParents));
+        // subject id range, e.g. after a checkpoint
+        if (subjectId!=null) {
+            csOntologyAnnotation.addConstraint(new SimpleConstraint(qfSubjectId, subjectOp, new QueryValue(subjectId)));
+        }
 
         // set the constraints
         qOntologyAnnotation.setConstraint(csOntologyAnnotation);
+        return qOntologyAnnotation;
+    }
 
-        // store the existing subject/term id pairs so we don't duplicate them
-        Set<Pair<String,String>> subjectTermSet = new LinkedHashSet<Pair<String,String>>();
-        
-        // store the subject/parents in a Set of Pairs for insertion
-        Set<Pair<Annotatable,OntologyTerm>> subjectParentSet = new LinkedHashSet<Pair<Annotatable,OntologyTerm>>();
-
+    /**
+     * Read the last subject id whose ancestor annotations were committed by a previous run.
+     *
+     * @param file the checkpoint file, may be null
+     * @return the subject id, or null if there is no checkpoint
+     * @throws ObjectStoreException if the checkpoint file can't be read
+     */
+    static Integer readCheckpoint(File file) throws ObjectStoreException {
+        if (file==null || !file.exists()) {
+            return null;
+        }
         try {
-            // execute the query
-            Results otResults = osw.getObjectStore().execute(qOntologyAnnotation);
-            Iterator<?> otIter = otResults.iterator();
-            while (otIter.hasNext()) {
-                ResultsRow<?> rr = (ResultsRow<?>) otIter.next();
-                // result objects
-                OntologyAnnotation annotation = (OntologyAnnotation) rr.get(0);
-                OntologyTerm term = (OntologyTerm) rr.get(1);
-                OntologyTerm parent = (OntologyTerm) rr.get(2);
-                Annotatable subject = (Annotatable) annotation.getFieldValue("subject");
-                // store the existing annotation in a Set
-                String subjectId = (String) subject.getFieldValue("primaryIdentifier");
-                String termIdentifier = (String) term.getFieldValue("identifier");
-                Pair<String,String> termPair = new MutablePair<String,String>(subjectId,termIdentifier);
-                subjectTermSet.add(termPair);
-                // store parent pairs in a Set
-                Pair<Annotatable,OntologyTerm> parentPair = new MutablePair<Annotatable,OntologyTerm>(subject,parent);
-                subjectParentSet.add(parentPair);
-            }
-        } catch (IllegalAccessException ex) {
-            throw new ObjectStoreException(ex);
+            return Integer.valueOf(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (IOException|NumberFormatException ex) {
+            throw new ObjectStoreException("Could not read checkpoint file "+file, ex);
         }
+    }
 
-        LOG.info("Storing new parent OntologyAnnotation records...");
-        
-        // add each parent annotation that isn't already in the database
+    /**
+     * Record the last subject id whose ancestor annotations have been committed, via a temporary file so a failure
+     * leaves the previous checkpoint intact.
+     *
+     * @param file the checkpoint file, may be null for no checkpoint
+     * @param subjectId the subject id
+     * @throws ObjectStoreException if the checkpoint file can't be written
+     */
+    static void writeCheckpoint(File file, int subjectId) throws ObjectStoreException {
+        if (file==null) {
+            return;
+        }
+        File tmpFile = new File(file.getPath()+".tmp");
         try {
-            osw.beginTransaction();
-            for (Pair<Annotatable,OntologyTerm> pair : subjectParentSet) {
-                Annotatable subject = pair.getLeft();
-                OntologyTerm term = pair.getRight();
-                String subjectId = (String) subject.getFieldValue("primaryIdentifier");
-                String termIdentifier = (String) term.getFieldValue("identifier");
-                String termName = (String) term.getFieldValue("name");
-                // store if this pair is NOT already in database
-                Pair<String,String> termPair = new MutablePair<String,String>(subjectId,termIdentifier);
-                if (!subjectTermSet.contains(termPair)) {
-                    // HACK: this shouldn't be hardcoded!
-                    // add annotation subclass -- branch on type
-                    if (termIdentifier.startsWith("GO:")) {
-                        OntologyAnnotation newAnnotation = (OntologyAnnotation) DynamicUtil.createObject(Collections.singleton(OntologyAnnotation.class));
-                        newAnnotation.setSubject(subject);
-                        newAnnotation.setOntologyTerm(term);
-                        osw.store(newAnnotation);
-                    } else if (termIdentifier.startsWith("PO:")) {
-                        OntologyAnnotation newAnnotation = (OntologyAnnotation) DynamicUtil.createObject(Collections.singleton(OntologyAnnotation.class));
-                        newAnnotation.setSubject(subject);
-                        newAnnotation.setOntologyTerm(term);
-                        osw.store(newAnnotation);
-                    } else if (termIdentifier.startsWith("TO:")) {
-                        OntologyAnnotation newAnnotation = (OntologyAnnotation) DynamicUtil.createObject(Collections.singleton(OntologyAnnotation.class));
-                        newAnnotation.setSubject(subject);
-                        newAnnotation.setOntologyTerm(term);
-                        osw.store(newAnnotation);
-                    } else {
-                        LOG.error("Unsupported OntologyTerm "+termIdentifier);
-                    }
+            Files.write(tmpFile.toPath(), String.valueOf(subjectId).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            throw new ObjectStoreException("Could not write checkpoint file "+file, ex);
+        }
+    }
+
+    /**
+     * Compute OntologyTerm.annotationCount, the number of distinct subjects annotated with each term or its descendants.
+     * Every subject of a descendant will have an annotation with each of its ancestors, so that's the number of distinct
+     * (subject, term) pairs among the existing and ancestor annotations.
+     *
+     * @param writer the ObjectStoreWriter to read with
+     * @param label the log label of the ontology
+     * @param pattern the MATCHES pattern of the ontology's term identifiers
+     * @param graph the ontology's term graph
+     * @param subjectTermSet the existing (subject, term) pairs
+     * @param subjectAncestorSet the (subject, ancestor term) pairs
+     * @param checkpoint the last subject id committed by a previous run, which isn't in the sets, or null
+     * @return the terms whose annotationCount has changed, with the new count set
+     * @throws ObjectStoreException if the objectstore throws an exception
+     */
+    List<OntologyTerm> getAnnotationCounts(ObjectStoreWriter writer, String label, String pattern, OntologyTermGraph graph,
+                                           LongHashSet subjectTermSet, LongHashSet subjectAncestorSet, Integer checkpoint)
+        throws ObjectStoreException {
+        // counts of the graph's terms by index, and of any annotated terms with no parents or children by id
+        int[] counts = new int[graph.size()];
+        Map<Integer,Integer> otherCounts = new HashMap<>();
+        PrimitiveIterator.OfLong pairIter = subjectTermSet.iterator();
+        while (pairIter.hasNext()) {
+            int termId = (int) pairIter.nextLong();
+            int termIndex = graph.indexOf(termId);
+            if (termIndex>=0) {
+                counts[termIndex]++;
+            } else {
+                otherCounts.merge(termId, 1, Integer::sum);
+            }
+        }
+        pairIter = subjectAncestorSet.iterator();
+        while (pairIter.hasNext()) {
+            long pair = pairIter.nextLong();
+            if (!subjectTermSet.contains(pair)) {
+                counts[graph.indexOf((int) pair)]++;
+            }
+        }
+        if (checkpoint!=null) {
+            // the subjects up to the checkpoint already have all their ancestor annotations, so just count them
+            Iterator<?> checkpointIter = writer.getObjectStore().execute(getAnnotationQuery(pattern, ConstraintOp.LESS_THAN_EQUALS, checkpoint),
+                                                                         5000, true, false, false).iterator();
+            while (checkpointIter.hasNext()) {
+                ResultsRow<?> rr = (ResultsRow<?>) checkpointIter.next();
+                int termId = ((Integer) rr.get(1)).intValue();
+                int termIndex = graph.indexOf(termId);
+                if (termIndex>=0) {
+                    counts[termIndex]++;
+                } else {
+                    otherCounts.merge(termId, 1, Integer::sum);
                 }
             }
-            osw.commitTransaction();
-        } catch (IllegalAccessException ex) {
-            throw new ObjectStoreException(ex);
         }
 
+        // only the terms whose count has changed are fetched and stored
+        Query q = new Query();
+        QueryClass qcTerm = new QueryClass(OntologyTerm.class);
+        q.addFrom(qcTerm);
+        q.addToSelect(new QueryField(qcTerm, "id"));
+        q.addToSelect(new QueryField(qcTerm, "annotationCount"));
+        q.setConstraint(new SimpleConstraint(new QueryField(qcTerm, "identifier"), ConstraintOp.MATCHES, new QueryValue(pattern)));
+        Map<Integer,Integer> changedCounts = new HashMap<>();
+        int termCount = 0;
+        Iterator<?> iter = writer.getObjectStore().execute(q, 5000, true, false, false).iterator();
+        while (iter.hasNext()) {
+            ResultsRow<?> rr = (ResultsRow<?>) iter.next();
+            Integer termId = (Integer) rr.get(0);
+            int termIndex = graph.indexOf(termId.intValue());
+            Integer otherCount = otherCounts.get(termId);
+            int annotationCount = (termIndex>=0) ? counts[termIndex] : (otherCount==null ? 0 : otherCount.intValue());
+            if (!Integer.valueOf(annotationCount).equals(rr.get(1))) {
+                changedCounts.put(termId, annotationCount);
+            }
+            termCount++;
+        }
+        List<Integer> changedIds = new ArrayList<>(changedCounts.keySet());
+        List<OntologyTerm> terms = new ArrayList<>();
+        for (int from=0; from<changedIds.size(); from+=ID_QUERY_SIZE) {
+            List<Integer> chunk = changedIds.subList(from, Math.min(from+ID_QUERY_SIZE, changedIds.size()));
+            Query qChanged = new Query();
+            QueryClass qcChanged = new QueryClass(OntologyTerm.class);
+            qChanged.addFrom(qcChanged);
+            qChanged.addToSelect(qcChanged);
+            qChanged.setConstraint(new BagConstraint(new QueryField(qcChanged, "id"), ConstraintOp.IN, new ArrayList<>(chunk)));
+            Iterator<?> changedIter = writer.getObjectStore().execute(qChanged).iterator();
+            while (changedIter.hasNext()) {
+                ResultsRow<?> rr = (ResultsRow<?>) changedIter.next();
+                OntologyTerm term = (OntologyTerm) rr.get(0);
+                term.setFieldValue("annotationCount", changedCounts.get(term.getId()));
+                terms.add(term);
+            }
+        }
+        LOG.info(label+"Counted the annotations of "+termCount+" terms, of which "+terms.size()+" have changed.");
+        return terms;
+    }
+
+    /**
+     * Store the ontology terms whose annotationCount has changed, commitSize terms per transaction.
+     *
+     * @param writer the ObjectStoreWriter to write with
+     * @param label the log label of the ontology
+     * @param terms the changed terms, with annotationCount set
+     * @throws ObjectStoreException if the objectstore throws an exception
+     */
+    void storeAnnotationCounts(ObjectStoreWriter writer, String label, List<OntologyTerm> terms) throws ObjectStoreException {
+        LOG.info(label+"Storing OntologyTerm.annotationCount...");
+        for (int from=0; from<terms.size(); from+=commitSize) {
+            writer.beginTransaction();
+            for (OntologyTerm term : terms.subList(from, Math.min(from+commitSize, terms.size()))) {
+                writer.store(term);
+            }
+            writer.commitTransaction();
+        }
+        LOG.info(label+"Set annotationCount on "+terms.size()+" terms.");
+    }
+
+    /**
+     * The missing ancestor annotations and annotation counts of one ontology, found before anything is stored.
+     */
+    static class PrefixPartition {
+
+        final String label;
+        final File checkpointFile;
+        // the packed (subject id, ancestor term id) pairs to store, in subject order, in newPairs[0..newCount)
+        long[] newPairs;
+        int newCount = 0;
+        // the terms whose annotationCount has changed, with it set, or null if the model has no annotationCount
+        List<OntologyTerm> countedTerms;
+
+        PrefixPartition(String label, File checkpointFile) {
+            this.label = label;
+            this.checkpointFile = checkpointFile;
+        }
     }
 
+    /**
+     * Pack a subject id and a term id into a single long.
+     *
+     * @param subjectId the object id of the annotated subject
+     * @param termId the object id of the ontology term
+     * @return the packed pair
+     */
+    static long pack(int subjectId, int termId) {
+        return ((long) subjectId << 32) | (termId & 0xFFFFFFFFL);
+    }
 }
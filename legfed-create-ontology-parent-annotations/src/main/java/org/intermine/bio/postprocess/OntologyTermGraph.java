@@ -0,0 +1,558 @@
+package org.intermine.bio.postprocess;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, Legume Federation
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.intermine.bio.util.PostProcessUtil;
+import org.intermine.metadata.ConstraintOp;
+import org.intermine.metadata.MetaDataException;
+import org.intermine.model.bio.DataSet;
+import org.intermine.model.bio.OntologyTerm;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.query.ConstraintSet;
+import org.intermine.objectstore.query.ContainsConstraint;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryCollectionReference;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryFunction;
+import org.intermine.objectstore.query.QueryValue;
+import org.intermine.objectstore.query.Results;
+import org.intermine.objectstore.query.ResultsRow;
+import org.intermine.objectstore.query.SimpleConstraint;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The OntologyTerm.parents graph held in int arrays. Terms are indexed 0..size()-1 in object id order, and each
+ * term's parents and children are stored as term indexes in compressed sparse row form. The full set of ancestors
+ * of a term is computed on first request and memoized, and is complete even if the parents graph has a cycle.
+ *
+ * A graph can be saved as a binary snapshot and memory-mapped by a later run, so the term graph is only read from
+ * the ObjectStore when the ontology release has changed. A release is identified by the count and id range of its
+ * terms and the versions of the DataSets its terms came from, which are cheap to query, so mapping a current
+ * snapshot costs no join over the parents.
+ */
+public class OntologyTermGraph {
+
+    private static final Logger LOG = Logger.getLogger(OntologyTermGraph.class);
+
+    // snapshot header, "OTGR" plus a format version
+    private static final int MAGIC = 0x4F544752;
+    private static final int VERSION = 1;
+
+    private static final int[] NO_TERMS = new int[0];
+
+    // object ids of the terms, sorted, so a term's index is found by binary search
+    private final IntBuffer termIds;
+    // the UTF-8 identifier of term i, e.g. TO:0000207, is identifierBytes[identifierOffsets[i]..identifierOffsets[i+1])
+    private final IntBuffer identifierOffsets;
+    private final ByteBuffer identifierBytes;
+    // parents of term i are parents[parentOffsets[i]..parentOffsets[i+1]), likewise children
+    private final IntBuffer parentOffsets;
+    private final IntBuffer parents;
+    private final IntBuffer childOffsets;
+    private final IntBuffer children;
+    // memoized ancestors of each term, sorted term indexes
+    private final int[][] ancestors;
+    // visited[i] == searches if term i has been reached by the current ancestor search
+    private int[] visited;
+    private int searches;
+
+    /**
+     * Construct from buffers; see the field comments for their layout.
+     *
+     * @param termIds the sorted term object ids
+     * @param identifierOffsets the offset of each term's identifier, plus the total identifier byte count
+     * @param identifierBytes the UTF-8 term identifiers
+     * @param parentOffsets the offset of each term's parents, plus the total parent count
+     * @param parents the parent term indexes
+     * @param childOffsets the offset of each term's children, plus the total child count
+     * @param children the child term indexes
+     */
+    OntologyTermGraph(IntBuffer termIds, IntBuffer identifierOffsets, ByteBuffer identifierBytes,
+                      IntBuffer parentOffsets, IntBuffer parents, IntBuffer childOffsets, IntBuffer children) {
+        this.termIds = termIds;
+        this.identifierOffsets = identifierOffsets;
+        this.identifierBytes = identifierBytes;
+        this.parentOffsets = parentOffsets;
+        this.parents = parents;
+        this.childOffsets = childOffsets;
+        this.children = children;
+        this.ancestors = new int[termIds.limit()][];
+    }
+
+    /**
+     * Return the graph of the terms whose identifiers match the given pattern, mapped from the snapshot file if it
+     * was saved for the current ontology release, otherwise loaded from the ObjectStore and saved to the snapshot
+     * file for next time.
+     *
+     * @param os the ObjectStore to query
+     * @param identifierPattern a MATCHES pattern for the term identifiers, e.g. TO:%
+     * @param snapshotFile the snapshot file
+     * @return the graph
+     * @throws IOException if the snapshot can't be read or written
+     */
+    public static OntologyTermGraph load(ObjectStore os, String identifierPattern, File snapshotFile) throws IOException {
+        long[] releaseKey = getReleaseKey(os, identifierPattern);
+        if (snapshotFile.exists()) {
+            OntologyTermGraph graph = map(snapshotFile, releaseKey);
+            if (graph != null) {
+                LOG.info("Mapped " + identifierPattern + " term graph from " + snapshotFile);
+                return graph;
+            }
+            LOG.info(snapshotFile + " is stale, rebuilding it.");
+        }
+        OntologyTermGraph graph = load(os, identifierPattern);
+        graph.write(snapshotFile, releaseKey);
+        LOG.info("Saved " + identifierPattern + " term graph to " + snapshotFile);
+        return graph;
+    }
+
+    /**
+     * Load the OntologyTerm.parents graph of the terms whose identifiers match the given pattern.
+     *
+     * @param os the ObjectStore to query
+     * @param identifierPattern a MATCHES pattern for the term identifiers, e.g. TO:%
+     * @return the graph
+     */
+    public static OntologyTermGraph load(ObjectStore os, String identifierPattern) {
+        Query q = new Query();
+        q.setDistinct(true);
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        // 0 OntologyTerm.id, 1 OntologyTerm.identifier
+        QueryClass qcTerm = new QueryClass(OntologyTerm.class);
+        q.addFrom(qcTerm);
+        q.addToSelect(new QueryField(qcTerm, "id"));
+        QueryField qfIdentifier = new QueryField(qcTerm, "identifier");
+        q.addToSelect(qfIdentifier);
+        cs.addConstraint(new SimpleConstraint(qfIdentifier, ConstraintOp.MATCHES, new QueryValue(identifierPattern)));
+        // 2 OntologyTerm.parents.id, 3 OntologyTerm.parents.identifier
+        QueryClass qcParent = new QueryClass(OntologyTerm.class);
+        q.addFrom(qcParent);
+        q.addToSelect(new QueryField(qcParent, "id"));
+        q.addToSelect(new QueryField(qcParent, "identifier"));
+        cs.addConstraint(new ContainsConstraint(new QueryCollectionReference(qcTerm, "parents"), ConstraintOp.CONTAINS, qcParent));
+        q.setConstraint(cs);
+
+        Map<Integer, String> identifierMap = new HashMap<Integer, String>();
+        int[] childIds = new int[1024];
+        int[] parentIds = new int[1024];
+        int edgeCount = 0;
+        Results results = os.execute(q, 5000, true, false, false);
+        Iterator<?> iter = results.iterator();
+        while (iter.hasNext()) {
+            ResultsRow<?> rr = (ResultsRow<?>) iter.next();
+            Integer termId = (Integer) rr.get(0);
+            Integer parentId = (Integer) rr.get(2);
+            identifierMap.put(termId, (String) rr.get(1));
+            identifierMap.put(parentId, (String) rr.get(3));
+            if (edgeCount == childIds.length) {
+                childIds = Arrays.copyOf(childIds, edgeCount * 2);
+                parentIds = Arrays.copyOf(parentIds, edgeCount * 2);
+            }
+            childIds[edgeCount] = termId.intValue();
+            parentIds[edgeCount] = parentId.intValue();
+            edgeCount++;
+        }
+        return build(identifierMap, childIds, parentIds, edgeCount);
+    }
+
+    /**
+     * Build a graph from term identifiers and (child, parent) object id edges.
+     *
+     * @param identifierMap the identifier of every term, keyed by object id
+     * @param childIds the child term object ids
+     * @param parentIds the parent term object ids
+     * @param edgeCount the number of edges in childIds and parentIds
+     * @return the graph
+     */
+    static OntologyTermGraph build(Map<Integer, String> identifierMap, int[] childIds, int[] parentIds, int edgeCount) {
+        int size = identifierMap.size();
+        int[] termIds = new int[size];
+        int n = 0;
+        for (Integer termId : identifierMap.keySet()) {
+            termIds[n++] = termId.intValue();
+        }
+        Arrays.sort(termIds);
+        // identifier dictionary
+        byte[][] encoded = new byte[size][];
+        int[] identifierOffsets = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            encoded[i] = identifierMap.get(termIds[i]).getBytes(StandardCharsets.UTF_8);
+            identifierOffsets[i + 1] = identifierOffsets[i] + encoded[i].length;
+        }
+        byte[] identifierBytes = new byte[identifierOffsets[size]];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(encoded[i], 0, identifierBytes, identifierOffsets[i], encoded[i].length);
+        }
+        // edges as term indexes
+        int[] childIndexes = new int[edgeCount];
+        int[] parentIndexes = new int[edgeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            childIndexes[e] = Arrays.binarySearch(termIds, childIds[e]);
+            parentIndexes[e] = Arrays.binarySearch(termIds, parentIds[e]);
+        }
+        int[] parentOffsets = new int[size + 1];
+        int[] parents = toCSR(childIndexes, parentIndexes, parentOffsets);
+        int[] childOffsets = new int[size + 1];
+        int[] children = toCSR(parentIndexes, childIndexes, childOffsets);
+        return new OntologyTermGraph(IntBuffer.wrap(termIds), IntBuffer.wrap(identifierOffsets), ByteBuffer.wrap(identifierBytes),
+                                     IntBuffer.wrap(parentOffsets), IntBuffer.wrap(parents),
+                                     IntBuffer.wrap(childOffsets), IntBuffer.wrap(children));
+    }
+
+    /**
+     * Group edges by their from node in compressed sparse row form.
+     *
+     * @param from the from node of each edge
+     * @param to the to node of each edge
+     * @param offsets filled with the offset of each node's edges, plus the edge count
+     * @return the to nodes, grouped by from node
+     */
+    private static int[] toCSR(int[] from, int[] to, int[] offsets) {
+        int size = offsets.length - 1;
+        for (int e = 0; e < from.length; e++) {
+            offsets[from[e] + 1]++;
+        }
+        for (int i = 0; i < size; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] next = Arrays.copyOf(offsets, size);
+        int[] grouped = new int[from.length];
+        for (int e = 0; e < from.length; e++) {
+            grouped[next[from[e]]++] = to[e];
+        }
+        return grouped;
+    }
+
+    /**
+     * Identify the loaded release of an ontology. The term count and object id range change whenever its terms are
+     * reloaded, and the DataSet versions change when a new release is loaded, including one that only edits is_a
+     * edges.
+     *
+     * @param os the ObjectStore to query
+     * @param identifierPattern a MATCHES pattern for the term identifiers, e.g. TO:%
+     * @return the term count, minimum and maximum id, and a hash of the DataSet names and versions
+     */
+    static long[] getReleaseKey(ObjectStore os, String identifierPattern) {
+        long[] key = new long[4];
+
+        Query q = new Query();
+        QueryClass qcTerm = new QueryClass(OntologyTerm.class);
+        q.addFrom(qcTerm);
+        QueryField qfId = new QueryField(qcTerm, "id");
+        q.addToSelect(new QueryFunction());
+        q.addToSelect(new QueryFunction(qfId, QueryFunction.MIN));
+        q.addToSelect(new QueryFunction(qfId, QueryFunction.MAX));
+        q.setConstraint(new SimpleConstraint(new QueryField(qcTerm, "identifier"), ConstraintOp.MATCHES, new QueryValue(identifierPattern)));
+        Iterator<?> iter = os.execute(q).iterator();
+        if (iter.hasNext()) {
+            ResultsRow<?> rr = (ResultsRow<?>) iter.next();
+            for (int i = 0; i < rr.size(); i++) {
+                key[i] = (rr.get(i) == null) ? 0L : ((Number) rr.get(i)).longValue();
+            }
+        }
+
+        key[3] = getDataSetVersionHash(os, identifierPattern);
+        return key;
+    }
+
+    /**
+     * @param os the ObjectStore to query
+     * @param identifierPattern a MATCHES pattern for the term identifiers, e.g. TO:%
+     * @return an FNV-1a hash of the distinct names and versions of the terms' DataSets, in order, or 0 if the model
+     * has no OntologyTerm.dataSets
+     */
+    static long getDataSetVersionHash(ObjectStore os, String identifierPattern) {
+        try {
+            PostProcessUtil.checkFieldExists(os.getModel(), "OntologyTerm", "dataSets", "Not versioning the term graph");
+        } catch (MetaDataException e) {
+            return 0L;
+        }
+        Query q = new Query();
+        q.setDistinct(true);
+        ConstraintSet cs = new ConstraintSet(ConstraintOp.AND);
+        QueryClass qcTerm = new QueryClass(OntologyTerm.class);
+        q.addFrom(qcTerm);
+        QueryClass qcDataSet = new QueryClass(DataSet.class);
+        q.addFrom(qcDataSet);
+        QueryField qfName = new QueryField(qcDataSet, "name");
+        QueryField qfVersion = new QueryField(qcDataSet, "version");
+        q.addToSelect(qfName);
+        q.addToSelect(qfVersion);
+        q.addToOrderBy(qfName);
+        q.addToOrderBy(qfVersion);
+        cs.addConstraint(new SimpleConstraint(new QueryField(qcTerm, "identifier"), ConstraintOp.MATCHES, new QueryValue(identifierPattern)));
+        cs.addConstraint(new ContainsConstraint(new QueryCollectionReference(qcTerm, "dataSets"), ConstraintOp.CONTAINS, qcDataSet));
+        q.setConstraint(cs);
+        long h = 0xcbf29ce484222325L;
+        Iterator<?> iter = os.execute(q).iterator();
+        while (iter.hasNext()) {
+            ResultsRow<?> rr = (ResultsRow<?>) iter.next();
+            // a separator after each field, so ("a", "bc") and ("ab", "c") differ
+            for (Object field : new Object[] {rr.get(0), rr.get(1)}) {
+                String value = (field == null) ? "" : field.toString();
+                for (int i = 0; i < value.length(); i++) {
+                    h = (h ^ value.charAt(i)) * 0x100000001b3L;
+                }
+                h = (h ^ 0xFFFF) * 0x100000001b3L;
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Write the graph to a snapshot file, via a temporary file so a failed write leaves the old snapshot intact.
+     *
+     * @param file the snapshot file
+     * @param releaseKey the release key of the ontology the graph was loaded from
+     * @throws IOException if the file can't be written
+     */
+    void write(File file, long[] releaseKey) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (long k : releaseKey) {
+                out.writeLong(k);
+            }
+            out.writeInt(size());
+            out.writeInt(edgeCount());
+            out.writeInt(identifierBytes.limit());
+            for (IntBuffer buffer : new IntBuffer[] {termIds, identifierOffsets, parentOffsets, parents, childOffsets, children}) {
+                for (int i = 0; i < buffer.limit(); i++) {
+                    out.writeInt(buffer.get(i));
+                }
+            }
+            for (int i = 0; i < identifierBytes.limit(); i++) {
+                out.writeByte(identifierBytes.get(i));
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Memory-map a snapshot file.
+     *
+     * @param file the snapshot file
+     * @param releaseKey the release key of the ontology in the ObjectStore
+     * @return the graph, or null if the snapshot is for a different release or format, or is truncated or corrupt
+     * @throws IOException if the file can't be read
+     */
+    static OntologyTermGraph map(File file, long[] releaseKey) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+                return null;
+            }
+            for (long k : releaseKey) {
+                if (mapped.getLong() != k) {
+                    return null;
+                }
+            }
+            int size = mapped.getInt();
+            int edgeCount = mapped.getInt();
+            int identifierByteCount = mapped.getInt();
+            // the rest of the file must hold exactly the arrays the counts call for
+            if (size < 0 || edgeCount < 0 || identifierByteCount < 0
+                || mapped.remaining() != 4L * (4L * size + 3 + 2L * edgeCount) + identifierByteCount) {
+                return null;
+            }
+            return map(mapped, size, edgeCount, identifierByteCount);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    // view the arrays of a snapshot whose header has been read
+    private static OntologyTermGraph map(ByteBuffer mapped, int size, int edgeCount, int identifierByteCount) {
+        IntBuffer termIds = sliceInts(mapped, size);
+        IntBuffer identifierOffsets = sliceInts(mapped, size + 1);
+        IntBuffer parentOffsets = sliceInts(mapped, size + 1);
+        IntBuffer parents = sliceInts(mapped, edgeCount);
+        IntBuffer childOffsets = sliceInts(mapped, size + 1);
+        IntBuffer children = sliceInts(mapped, edgeCount);
+        ByteBuffer identifierBytes = mapped.slice();
+        identifierBytes.limit(identifierByteCount);
+        return new OntologyTermGraph(termIds, identifierOffsets, identifierBytes, parentOffsets, parents, childOffsets, children);
+    }
+
+    // view the next count ints of a buffer, and move past them
+    private static IntBuffer sliceInts(ByteBuffer buffer, int count) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(count * 4);
+        buffer.position(buffer.position() + count * 4);
+        return slice.asIntBuffer();
+    }
+
+    /**
+     * @return the number of terms
+     */
+    public int size() {
+        return termIds.limit();
+    }
+
+    /**
+     * @return the number of parent edges
+     */
+    public int edgeCount() {
+        return parents.limit();
+    }
+
+    /**
+     * @param termId the object id of a term
+     * @return the index of the term, or -1 if the term isn't in the graph
+     */
+    public int indexOf(int termId) {
+        int low = 0;
+        int high = termIds.limit() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midId = termIds.get(mid);
+            if (midId < termId) {
+                low = mid + 1;
+            } else if (midId > termId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param index a term index
+     * @return the object id of the term
+     */
+    public int getTermId(int index) {
+        return termIds.get(index);
+    }
+
+    /**
+     * @param index a term index
+     * @return the identifier of the term
+     */
+    public String getIdentifier(int index) {
+        int start = identifierOffsets.get(index);
+        byte[] bytes = new byte[identifierOffsets.get(index + 1) - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = identifierBytes.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param index a term index
+     * @return the indexes of the term's direct children
+     */
+    public int[] getChildren(int index) {
+        int start = childOffsets.get(index);
+        int[] result = new int[childOffsets.get(index + 1) - start];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = children.get(start + i);
+        }
+        return result;
+    }
+
+    /**
+     * Return all the ancestors of a term, i.e. its parents, their parents and so on, computing and memoizing them
+     * the first time. Every memoized set is complete, so the search stops at terms already computed. A term in a
+     * cycle of the parents graph is reported, and its ancestors are every other term reachable from it.
+     *
+     * @param index a term index
+     * @return the sorted indexes of the ancestors, which must not be modified
+     */
+    public synchronized int[] getAncestors(int index) {
+        int[] memo = ancestors[index];
+        if (memo != null) {
+            return memo;
+        }
+        if (parentOffsets.get(index) == parentOffsets.get(index + 1)) {
+            ancestors[index] = NO_TERMS;
+            return NO_TERMS;
+        }
+        if (visited == null) {
+            visited = new int[size()];
+        }
+        // a fresh mark per search saves clearing visited
+        int mark = ++searches;
+        boolean cycle = false;
+        int[] found = new int[16];
+        int n = 0;
+        // terms whose parents are still to be searched
+        int[] pending = new int[16];
+        int p = 0;
+        pending[p++] = index;
+        while (p > 0) {
+            int term = pending[--p];
+            int[] termAncestors = (term == index) ? null : ancestors[term];
+            if (termAncestors != null) {
+                // already complete, so these need no search
+                for (int ancestor : termAncestors) {
+                    if (ancestor == index) {
+                        cycle = true;
+                    } else if (visited[ancestor] != mark) {
+                        visited[ancestor] = mark;
+                        found = set(found, n++, ancestor);
+                    }
+                }
+                continue;
+            }
+            int end = parentOffsets.get(term + 1);
+            for (int i = parentOffsets.get(term); i < end; i++) {
+                int parent = parents.get(i);
+                if (parent == index) {
+                    cycle = true;
+                } else if (visited[parent] != mark) {
+                    visited[parent] = mark;
+                    found = set(found, n++, parent);
+                    pending = set(pending, p++, parent);
+                }
+            }
+        }
+        if (cycle) {
+            LOG.warn(getIdentifier(index) + " is its own ancestor, the parents graph has a cycle.");
+        }
+        int[] result = Arrays.copyOf(found, n);
+        Arrays.sort(result);
+        ancestors[index] = result;
+        return result;
+    }
+
+    // set array[i] to value, growing the array if it's full
+    private static int[] set(int[] array, int i, int value) {
+        int[] result = (i < array.length) ? array : Arrays.copyOf(array, array.length * 2);
+        result[i] = value;
+        return result;
+    }
+}
@@ -0,0 +1,144 @@
+package org.intermine.bio.postprocess;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, Legume Federation
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for OntologyTermGraph.
+ */
+public class OntologyTermGraphTest {
+
+    private static final long[] RELEASE_KEY = new long[] {5L, 10L, 50L, 12345L};
+
+    // terms TO:1..TO:n with object ids 10, 20, ... so term i has index i - 1, and edges as (child, parent) term numbers
+    private static OntologyTermGraph graph(int n, int... edges) {
+        Map<Integer, String> identifierMap = new LinkedHashMap<Integer, String>();
+        for (int i = n; i >= 1; i--) {
+            identifierMap.put(i * 10, "TO:" + i);
+        }
+        int edgeCount = edges.length / 2;
+        int[] childIds = new int[edgeCount];
+        int[] parentIds = new int[edgeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            childIds[e] = edges[2 * e] * 10;
+            parentIds[e] = edges[2 * e + 1] * 10;
+        }
+        return OntologyTermGraph.build(identifierMap, childIds, parentIds, edgeCount);
+    }
+
+    // a diamond 1 -> 2, 3 -> 4 with a chain 4 -> 5
+    private static OntologyTermGraph diamond() {
+        return graph(5, 1, 2, 1, 3, 2, 4, 3, 4, 4, 5);
+    }
+
+    @Test
+    public void testStructure() {
+        OntologyTermGraph graph = diamond();
+        assertEquals(5, graph.size());
+        assertEquals(5, graph.edgeCount());
+        assertEquals(2, graph.indexOf(30));
+        assertEquals(-1, graph.indexOf(35));
+        assertEquals(30, graph.getTermId(2));
+        assertEquals("TO:3", graph.getIdentifier(2));
+        assertArrayEquals(new int[] {1, 2}, graph.getChildren(3));
+        assertArrayEquals(new int[0], graph.getChildren(0));
+    }
+
+    @Test
+    public void testAncestors() {
+        OntologyTermGraph graph = diamond();
+        assertArrayEquals(new int[] {1, 2, 3, 4}, graph.getAncestors(0));
+        assertArrayEquals(new int[] {3, 4}, graph.getAncestors(1));
+        assertArrayEquals(new int[] {4}, graph.getAncestors(3));
+        assertArrayEquals(new int[0], graph.getAncestors(4));
+    }
+
+    @Test
+    public void testAncestorsFromRootFirst() {
+        // memoized ancestors of the upper terms are reused by the lower ones
+        OntologyTermGraph graph = diamond();
+        assertArrayEquals(new int[0], graph.getAncestors(4));
+        assertArrayEquals(new int[] {4}, graph.getAncestors(3));
+        assertArrayEquals(new int[] {3, 4}, graph.getAncestors(2));
+        assertArrayEquals(new int[] {1, 2, 3, 4}, graph.getAncestors(0));
+    }
+
+    @Test
+    public void testAncestorsWithCycle() {
+        // 1 -> 2 -> 3 -> 2, 3 -> 4
+        OntologyTermGraph graph = graph(4, 1, 2, 2, 3, 3, 2, 3, 4);
+        assertArrayEquals(new int[] {1, 2, 3}, graph.getAncestors(0));
+        assertArrayEquals(new int[] {2, 3}, graph.getAncestors(1));
+        assertArrayEquals(new int[] {1, 3}, graph.getAncestors(2));
+
+        // the same sets whichever term is asked for first
+        graph = graph(4, 1, 2, 2, 3, 3, 2, 3, 4);
+        assertArrayEquals(new int[] {1, 3}, graph.getAncestors(2));
+        assertArrayEquals(new int[] {2, 3}, graph.getAncestors(1));
+        assertArrayEquals(new int[] {1, 2, 3}, graph.getAncestors(0));
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        File file = File.createTempFile("ontology", ".graph");
+        try {
+            diamond().write(file, RELEASE_KEY);
+            OntologyTermGraph graph = OntologyTermGraph.map(file, RELEASE_KEY);
+            assertEquals(5, graph.size());
+            assertEquals(5, graph.edgeCount());
+            assertEquals(2, graph.indexOf(30));
+            assertEquals("TO:5", graph.getIdentifier(4));
+            assertArrayEquals(new int[] {1, 2}, graph.getChildren(3));
+            assertArrayEquals(new int[] {1, 2, 3, 4}, graph.getAncestors(0));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSnapshotForOtherRelease() throws IOException {
+        File file = File.createTempFile("ontology", ".graph");
+        try {
+            diamond().write(file, RELEASE_KEY);
+            assertNull(OntologyTermGraph.map(file, new long[] {5L, 10L, 50L, 54321L}));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTruncatedSnapshot() throws IOException {
+        File file = File.createTempFile("ontology", ".graph");
+        try {
+            diamond().write(file, RELEASE_KEY);
+            long length = file.length();
+            for (long truncated : new long[] {length - 1, 60, 20, 3, 0}) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(truncated);
+                }
+                assertNull(OntologyTermGraph.map(file, RELEASE_KEY));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.intermine.bio.postprocess;
+
+/*
+ * Copyright (C) 2019 NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.LongConsumer;
+
+/**
+ * Open-addressing set of primitive longs, for the packed id pairs the post-processors dedupe on: a pair costs a few
+ * bytes rather than a String or Pair and a HashMap entry. The table grows by half when it is 80% full, so it stays
+ * between 53% and 80% full, i.e. 10 to 15 bytes per key.
+ */
+public class LongHashSet {
+
+    private static final long EMPTY = 0L;
+
+    private long[] keys = new long[1024];
+    private int size = 0;
+    private boolean hasEmptyKey = false;
+
+    /**
+     * @param key the key to add
+     * @return true if the key was not already present
+     */
+    public boolean add(long key) {
+        if (key==EMPTY) {
+            if (hasEmptyKey) {
+                return false;
+            }
+            hasEmptyKey = true;
+            size++;
+            return true;
+        }
+        int i = slot(key, keys.length);
+        while (keys[i]!=EMPTY) {
+            if (keys[i]==key) {
+                return false;
+            }
+            if (++i==keys.length) {
+                i = 0;
+            }
+        }
+        keys[i] = key;
+        size++;
+        if (size*5L > keys.length*4L) {
+            rehash(keys.length + keys.length/2);
+        }
+        return true;
+    }
+
+    /**
+     * @param key the key to look for
+     * @return true if the key is present
+     */
+    public boolean contains(long key) {
+        if (key==EMPTY) {
+            return hasEmptyKey;
+        }
+        int i = slot(key, keys.length);
+        while (keys[i]!=EMPTY) {
+            if (keys[i]==key) {
+                return true;
+            }
+            if (++i==keys.length) {
+                i = 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the approximate heap used by the key table
+     */
+    public long memoryBytes() {
+        return 8L * keys.length;
+    }
+
+    /**
+     * @param action called with each key in the set
+     */
+    public void forEach(LongConsumer action) {
+        if (hasEmptyKey) {
+            action.accept(EMPTY);
+        }
+        for (long key : keys) {
+            if (key!=EMPTY) {
+                action.accept(key);
+            }
+        }
+    }
+
+    /**
+     * @return an iterator over the keys, in no particular order; the set must not be changed while iterating
+     */
+    public PrimitiveIterator.OfLong iterator() {
+        return new PrimitiveIterator.OfLong() {
+            private int slot = hasEmptyKey ? -1 : advance(0);
+
+            private int advance(int from) {
+                int i = from;
+                while (i<keys.length && keys[i]==EMPTY) {
+                    i++;
+                }
+                return i;
+            }
+
+            public boolean hasNext() {
+                return slot<keys.length;
+            }
+
+            public long nextLong() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long key = (slot<0) ? EMPTY : keys[slot];
+                slot = advance(slot+1);
+                return key;
+            }
+        };
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        keys = new long[capacity];
+        for (long key : oldKeys) {
+            if (key!=EMPTY) {
+                int i = slot(key, capacity);
+                while (keys[i]!=EMPTY) {
+                    if (++i==capacity) {
+                        i = 0;
+                    }
+                }
+                keys[i] = key;
+            }
+        }
+    }
+
+    // scramble the key and map it onto [0,capacity) without a modulo
+    private static int slot(long key, int capacity) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 32);
+        return (int) (((h & 0xFFFFFFFFL) * capacity) >>> 32);
+    }
+}
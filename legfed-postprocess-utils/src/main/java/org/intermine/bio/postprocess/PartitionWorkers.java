@@ -0,0 +1,135 @@
+package org.intermine.bio.postprocess;
+
+/*
+ * Copyright (C) 2019 NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.intermine.model.bio.Organism;
+import org.intermine.objectstore.ObjectStore;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.ObjectStoreWriter;
+import org.intermine.objectstore.intermine.ObjectStoreInterMineImpl;
+import org.intermine.objectstore.query.Query;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.ResultsRow;
+
+/**
+ * Runs a post-processor's independent partitions, e.g. organisms or ontologies, concurrently, each on its own thread
+ * with its own ObjectStoreWriter, since an ObjectStoreWriter may only be used by one thread.
+ *
+ * The writers share one ObjectStore, and a commit through any of them fails the Results the others are still reading
+ * with a DataChangedException. So a partition must not commit while another may be reading: either read every
+ * partition in one run and write them in a second, or guard reads and commits with a shared read-write lock.
+ */
+public class PartitionWorkers {
+
+    /**
+     * The work for one partition.
+     * @param <K> the partition key
+     * @param <V> the partition's result
+     */
+    public interface Worker<K, V> {
+        /**
+         * @param writer the partition's own ObjectStoreWriter
+         * @param partition the partition key
+         * @return the partition's result
+         * @throws ObjectStoreException if the objectstore throws an exception
+         */
+        V run(ObjectStoreWriter writer, K partition) throws ObjectStoreException;
+    }
+
+    private PartitionWorkers() {
+        // static methods only
+    }
+
+    /**
+     * Run the worker on each partition, on up to threads threads. Each partition gets a new writer on the given
+     * writer's ObjectStore, closed when the partition is done. If a partition fails the rest are cancelled.
+     *
+     * @param osw the ObjectStoreWriter whose ObjectStore the partition writers use
+     * @param partitions the partition keys
+     * @param threads the maximum number of partitions running at once
+     * @param failure the start of the message of the exception thrown if a partition fails, followed by its key
+     * @param worker the work for one partition
+     * @param <K> the partition key
+     * @param <V> the partition's result
+     * @return the results, in partition order
+     * @throws ObjectStoreException if a partition fails or the wait is interrupted
+     */
+    public static <K, V> Map<K, V> run(final ObjectStoreWriter osw, Collection<K> partitions, int threads, String failure,
+                                       final Worker<K, V> worker) throws ObjectStoreException {
+        Map<K, V> results = new LinkedHashMap<>();
+        if (partitions.isEmpty()) {
+            return results;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, partitions.size())));
+        Map<K, Future<V>> futures = new LinkedHashMap<>();
+        for (final K partition : partitions) {
+            futures.put(partition, executor.submit(() -> {
+                ObjectStoreWriter partitionWriter = ((ObjectStoreInterMineImpl) osw.getObjectStore()).getNewWriter();
+                try {
+                    return worker.run(partitionWriter, partition);
+                } finally {
+                    partitionWriter.close();
+                }
+            }));
+        }
+        executor.shutdown();
+        try {
+            for (Map.Entry<K, Future<V>> entry : futures.entrySet()) {
+                try {
+                    results.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException ex) {
+                    executor.shutdownNow();
+                    throw new ObjectStoreException(failure + entry.getKey(), ex.getCause());
+                }
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new ObjectStoreException(ex);
+        }
+        return results;
+    }
+
+    /**
+     * @param os the ObjectStore to query
+     * @return the taxon ids of all the organisms in the mine, in order
+     */
+    public static Set<Integer> getTaxonIds(ObjectStore os) {
+        Query q = new Query();
+        q.setDistinct(true);
+        QueryClass qcOrg = new QueryClass(Organism.class);
+        q.addFrom(qcOrg);
+        QueryField qfTaxonId = new QueryField(qcOrg, "taxonId");
+        q.addToSelect(qfTaxonId);
+        q.addToOrderBy(qfTaxonId);
+        Set<Integer> taxonIds = new LinkedHashSet<>();
+        Iterator<?> iter = os.execute(q).iterator();
+        while (iter.hasNext()) {
+            ResultsRow<?> rr = (ResultsRow<?>) iter.next();
+            if (rr.get(0) != null) {
+                taxonIds.add((Integer) rr.get(0));
+            }
+        }
+        return taxonIds;
+    }
+}